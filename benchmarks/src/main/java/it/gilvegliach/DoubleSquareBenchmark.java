@@ -0,0 +1,35 @@
+package it.gilvegliach;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** 
+ * {@link DoubleSquare#countDecompositions(int)} on the largest inputs: the
+ * maximum, a prime; a perfect square; 5^3 * 13 * 17 * 29 * 37 * 41, with
+ * 64 decompositions. A small one for reference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DoubleSquareBenchmark {
+    @Param({ "2147483647", "2147395600", "1215306625", "25" })
+    int n;
+    
+    @Benchmark
+    public int countDecompositions() {
+        return DoubleSquare.countDecompositions(n);
+    }
+}
@@ -0,0 +1,76 @@
+package it.gilvegliach;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** 
+ * Whole runs of the sieve on <code>[0..n-1]</code>, counting and printing, 
+ * and their first pass up to sqrt(n).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrimeListBenchmark {
+    @Param({ "1000", "1000000", "100000000", "4294967296" })
+    long n;
+    
+    private long mLimit;
+    private int[] mPrimes;
+    private PrintStream mSink;
+    
+    @Setup
+    public void setUp() {
+        mLimit = PrimeList.isqrt(n - 1);
+        mPrimes = PrimeList.sieveInitial(mLimit);
+        mSink = new PrintStream(new NullOutputStream());
+    }
+    
+    @Benchmark
+    public int[] sieveInitial() {
+        return PrimeList.sieveInitial(mLimit);
+    }
+    
+    /** As answered by the api: large n's go to PrimeCounter */
+    @Benchmark
+    public long count() {
+        return PrimeList.sieve(n, (PrintStream) null);
+    }
+    
+    /** The segments past sqrt(n), always sieved by the workers */
+    @Benchmark
+    public long countSegments() {
+        return PrimeList.sieveParallel(mPrimes, mLimit + 1, n - 1, null, true);
+    }
+    
+    @Benchmark
+    public long output() {
+        return PrimeList.sieve(n, mSink);
+    }
+    
+    /** Discards everything: measures formatting, not the disk */
+    static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
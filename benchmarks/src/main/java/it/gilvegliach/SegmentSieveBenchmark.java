@@ -0,0 +1,54 @@
+package it.gilvegliach;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.gilvegliach.PrimeList.SegmentSieve;
+
+/** 
+ * A single block of segments, on one thread, at increasing heights: the 
+ * higher, the more primes go through the buckets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class SegmentSieveBenchmark {
+    @Param({ "1000000", "4294967296", "1000000000000", "9990000000000" })
+    long base;
+    
+    private long mBase;
+    private SegmentSieve mSieve;
+    
+    @Setup
+    public void setUp() {
+        mBase = PrimeList.blockStart(base);
+        long hi = mBase + PrimeList.BLOCK_SPAN - 1;
+        mSieve = new SegmentSieve(PrimeList.sieveInitial(PrimeList.isqrt(hi)));
+    }
+    
+    /** Sieves and counts the block, from scratch every time */
+    @Benchmark
+    public int sieveBlock() {
+        int count = 0;
+        mSieve.startBlock(mBase, PrimeList.BLOCK_BYTES);
+        while (mSieve.nextSegment()) {
+            int nbits = mSieve.mBytes << 3;
+            count += nbits - mSieve.mBits.count(0, nbits);
+        }
+        return count;
+    }
+}
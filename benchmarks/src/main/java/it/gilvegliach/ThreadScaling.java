@@ -0,0 +1,58 @@
+package it.gilvegliach;
+
+import static it.gilvegliach.Utils.checkCondArg;
+import static it.gilvegliach.Utils.closeQuietly;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** 
+ * Runs {@link PrimeListBenchmark#countSegments()} up to 2^32 with 1, 2, 4, 
+ * ... worker threads, up to the number of cpus, and writes the results as 
+ * JSON to args[0]. The workers are set per fork with 
+ * <code>primelist.threads</code>.
+ */
+public class ThreadScaling {
+    public static void main(String[] args) 
+            throws RunnerException, FileNotFoundException {
+        checkCondArg(args.length == 1, 
+            "args[0] must be a pathname and the only argument");
+        
+        int cpus = Runtime.getRuntime().availableProcessors();
+        List<Integer> threads = new ArrayList<Integer>();
+        for (int t = 1; t < cpus; t <<= 1) {
+            threads.add(t);
+        }
+        threads.add(cpus);
+        
+        List<RunResult> results = new ArrayList<RunResult>();
+        for (int t : threads) {
+            Options opts = new OptionsBuilder()
+                .include("\\.PrimeListBenchmark\\.countSegments$")
+                .param("n", "4294967296")
+                .jvmArgsAppend("-Dprimelist.threads=" + t)
+                .build();
+            results.addAll(new Runner(opts).run());
+        }
+        
+        PrintStream out = null;
+        try {
+            out = new PrintStream(new FileOutputStream(args[0]));
+            ResultFormatFactory.getInstance(ResultFormatType.JSON, out)
+                .writeOut(results);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+}
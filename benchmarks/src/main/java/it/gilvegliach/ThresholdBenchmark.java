@@ -0,0 +1,59 @@
+package it.gilvegliach;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.gilvegliach.PrimeListBenchmark.NullOutputStream;
+
+/** 
+ * Sieving in a single pass against sieving by segments around 
+ * the large n threshold: it should sit where the two cross.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThresholdBenchmark {
+    @Param({ "100000", "300000", "1000000", "3000000", "10000000" })
+    long n;
+    
+    @Param({ "false", "true" })
+    boolean segmented;
+    
+    private long mThreshold;
+    private PrintStream mSink;
+    
+    @Setup
+    public void setUp() {
+        mThreshold = PrimeList.largeNThreshold();
+        PrimeList.setLargeNThreshold(segmented 
+            ? PrimeList.MIN_LARGE_N_THRESHOLD : PrimeList.MAX_LARGE_N_THRESHOLD);
+        mSink = new PrintStream(new NullOutputStream());
+    }
+    
+    @TearDown
+    public void tearDown() {
+        PrimeList.setLargeNThreshold(mThreshold);
+    }
+    
+    /** Printing, otherwise large counts go to PrimeCounter */
+    @Benchmark
+    public long output() {
+        return PrimeList.sieve(n, mSink);
+    }
+}
@@ -1,84 +1,437 @@
 package it.gilvegliach;
 
 import static it.gilvegliach.Utils.checkCondArg;
+import static it.gilvegliach.Utils.checkNonNullArg;
 import static it.gilvegliach.Utils.closeQuietly;
 
-import java.io.FileReader;
-import java.io.BufferedReader;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.io.PrintStream;
 
 /** Solves https://www.codeeval.com/public_sc/33/ */
 public class DoubleSquare {
+    private static final int BATCH_THRESHOLD = 32;  // values per task
+    private static final int SEGMENT_SIZE = 1 << 16;  // numbers per task
+    private static final int MAX_TABULATION = 1 << 30;
+    private static final String BULK_FLAG = "--bulk";
+    private static final int BULK_BATCH = 1 << 16;  // values counted at once
+    private static final int TEXT_BUFFER_SIZE = 1 << 16;
+    private static final byte NEWLINE = '\n';
+    private static final ForkJoinPool POOL = 
+        new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    
     /** 
      * Counts in how many ways <code>n</code> can be
      * written as a sum of two squares. The forms
      * <code>sˆ2 + t^2</code> and <code>t^2 + s^2</code>
      * are counted only once. 
      *  
-     * Runs <code>sqrt(n / 2) + 1</code> times 
-     * <code>Math.sqrt()</code> and uses <code>O(1)</code>
-     * memory. 
+     * Runs about <code>sqrt(n / 2)</code> steps of integer
+     * arithmetic, with a single <code>Math.sqrt()</code>,
+     * and uses <code>O(1)</code> memory. 
      */
     public static int countDecompositions(int n) {
         checkCondArg(n >= 0, "n must be >= 0");
         
-        // Let n = s^2 + t^2, then:
-        //    s <= sqrt(n / 2)     <=>
-        //    s^2 <= n / 2         <=>
-        //    n - s^2 >= n - n / 2 <=>
-        //    t >= sqrt(n / 2)
+        // Squares are 0 or 1 (mod 4), so their sums are never 3
+        if ((n & 3) == 3) return 0;
+        
+        // Let n = s^2 + t^2, with t <= s, then:
+        //    t <= sqrt(n / 2)     <=>
+        //    t^2 <= n / 2         <=>
+        //    n - t^2 >= n - n / 2 <=>
+        //    s >= sqrt(n / 2)
         // Therefore is enough to count the decompositions
-        // up to sqrt(n / 2).
+        // while t <= s. As t grows, s = isqrt(n - t^2) only
+        // shrinks: it's updated in place, about sqrt(n) - 
+        // sqrt(n / 2) times in all, instead of calling 
+        // Math.sqrt() every time.
         int count = 0;
-        int k = (int) Math.sqrt(n / 2.0);
-        for (int t = 0; t <= k; t++) {
+        int s = isqrt(n);
+        for (int t = 0; t <= s; t++) {
             int q = n - t * t;
-            int s = (int) Math.sqrt(q);
-            if (s * s == q) {    // q is a perfect square
+            while (s * s > q) s--;
+            if (s * s == q && t <= s) {    // q is a perfect square
                 count++;
             }
         }
         return count;
     }
     
+    /** 
+     * Same as {@link #countDecompositions(int)}, from the factorization of
+     * <code>n</code>: if n > 0 has a prime factor p = 3 (mod 4) with an odd
+     * exponent, there are no decompositions, otherwise there are 
+     * <code>(B + 1) / 2</code>, where B is the product of <code>e + 1</code>
+     * over the prime factors p = 1 (mod 4), with exponent e.
+     * 
+     * Factors up to {@link Factors#TRIAL_LIMIT} are found by trial division
+     * by sieved primes. What's left has at most three prime factors, found
+     * by Miller-Rabin and Pollard's rho in about <code>O(n^(1/4))</code>.
+     */
+    public static int countDecompositionsByFactors(int n) {
+        checkCondArg(n >= 0, "n must be >= 0");
+        if (n == 0) return 1;   // 0 = 0^2 + 0^2
+        
+        int m = n;
+        int b = 1;
+        for (int p : Factors.PRIMES) {
+            if (p * p > m) break;
+            if (m % p != 0) continue;
+            int e = 0;
+            do {
+                m /= p;
+                e++;
+            } while (m % p == 0);
+            b *= Factors.weight(p, e);
+            if (b == 0) return 0;
+        }
+        if (m > 1) {
+            b *= Factors.weight(m);
+        }
+        return (b + 1) / 2;
+    }
+    
+    /** 
+     * Same as {@link #countDecompositions(int)} on every value of 
+     * <code>ns</code>, split among the cpus. Values are factored, see
+     * {@link #countDecompositionsByFactors(int)}.
+     */
+    public static int[] countDecompositions(int[] ns) {
+        checkNonNullArg(ns, "ns must not be null");
+        for (int n : ns) {
+            checkCondArg(n >= 0, "ns must be >= 0");
+        }
+        int[] counts = new int[ns.length];
+        POOL.invoke(new CountTask(ns, counts, 0, ns.length));
+        return counts;
+    }
+    
+    /** 
+     * Counts the decompositions of every number in <code>[lo..hi]</code>:
+     * the count of <code>k</code> is at index <code>k - lo</code>. Instead
+     * of looking for the squares of each number, it walks the pairs
+     * <code>t <= s</code> with <code>s^2 + t^2</code> in range, adding one 
+     * to their sum: that's about <code>O(hi - lo + sqrt(hi))</code>.
+     * 
+     * The range is split in segments of 2^16 numbers, handed out to the 
+     * cpus, so that the counts being updated stay in cache.
+     */
+    public static int[] tabulateDecompositions(int lo, int hi) {
+        checkCondArg(lo >= 0, "lo must be >= 0");
+        if (lo > hi) return new int[0];
+        checkCondArg(hi - lo < MAX_TABULATION, "hi - lo must be < 2^30");
+        
+        int[] counts = new int[hi - lo + 1];
+        int nsegments = (hi - lo) / SEGMENT_SIZE + 1;
+        POOL.invoke(new TabulateTask(counts, lo, hi, 0, nsegments));
+        return counts;
+    }
+    
+    /** 
+     * Adds the pairs with sum in <code>[a..b]</code> to 
+     * <code>counts</code>, which starts at <code>lo</code>.
+     */
+    static void tabulateSegment(int[] counts, int lo, int a, int b) {
+        // As in countDecompositions(): t <= sqrt(n / 2) <= s
+        for (int t = 0; 2L * t * t <= b; t++) {
+            int tt = t * t;
+            // First s >= t with s^2 + t^2 >= a
+            int s = t;
+            int rem = a - tt;
+            if (rem > s * s) {
+                s = isqrt(rem);
+                if (s * s < rem) s++;
+            }
+            // Consecutive squares differ by 2s + 1
+            for (long k = (long) s * s + tt; k <= b; k += 2 * s + 1, s++) {
+                counts[(int) (k - lo)]++;
+            }
+        }
+    }
+    
+    /** Largest s such that s^2 <= n */
+    static int isqrt(int n) {
+        int s = (int) Math.sqrt(n);
+        // Fix rounding errors of the floating point root
+        while (s * s > n) s--;
+        // 46341^2 overflows: it's past any int anyway
+        while (s < 46340 && (s + 1) * (s + 1) <= n) s++;
+        return s;
+    }
+    
+    /** Primes for trial division and factoring of what's left */
+    static class Factors {
+        // Past it, an int has at most 3 prime factors: 1031^3 < 2^31 < 1031^4
+        static final int TRIAL_LIMIT = 1024;
+        static final int[] PRIMES = primes(TRIAL_LIMIT);
+        private static final int[] BASES = { 2, 7, 61 };
+        
+        /** 
+         * Factor of B of the prime p with exponent e, see 
+         * {@link DoubleSquare#countDecompositionsByFactors(int)}.
+         */
+        static int weight(int p, int e) {
+            if (p == 2) return 1;
+            if ((p & 3) == 1) return e + 1;
+            return (e & 1) == 0 ? 1 : 0;
+        }
+        
+        /** 
+         * Factor of B of <code>m</code>, with no prime factors below 
+         * TRIAL_LIMIT, hence at most three.
+         */
+        static int weight(int m) {
+            int[] f = new int[3];
+            int n = split(m, f, 0);
+            Arrays.sort(f, 0, n);
+            int w = 1;
+            for (int i = 0; i < n; ) {
+                int j = i + 1;
+                while (j < n && f[j] == f[i]) j++;
+                w *= weight(f[i], j - i);
+                i = j;
+            }
+            return w;
+        }
+        
+        /** 
+         * Adds the prime factors of <code>m</code>, as in weight(int), to 
+         * <code>f</code> from <code>len</code>. Returns the new length.
+         */
+        private static int split(int m, int[] f, int len) {
+            if (m < TRIAL_LIMIT * TRIAL_LIMIT || isPrime(m)) {
+                f[len++] = m;
+                return len;
+            }
+            // At most three factors: a square is p^2
+            int s = isqrt(m);
+            if (s * s == m) {
+                f[len++] = s;
+                f[len++] = s;
+                return len;
+            }
+            int d = rho(m);
+            len = split(d, f, len);
+            return split(m / d, f, len);
+        }
+        
+        /** Deterministic Miller-Rabin: these bases cover every int */
+        static boolean isPrime(int n) {
+            if (n < 2) return false;
+            for (int a : BASES) {
+                if (n == a) return true;
+                if (n % a == 0) return false;
+            }
+            int d = n - 1;
+            int r = 0;
+            while ((d & 1) == 0) {
+                d >>= 1;
+                r++;
+            }
+            for (int a : BASES) {
+                long x = powMod(a, d, n);
+                if (x == 1 || x == n - 1) continue;
+                boolean composite = true;
+                for (int i = 1; i < r && composite; i++) {
+                    x = x * x % n;
+                    composite = x != n - 1;
+                }
+                if (composite) return false;
+            }
+            return true;
+        }
+        
+        /** 
+         * A non trivial factor of the composite <code>n</code>, odd and not
+         * a square, by Pollard's rho with Floyd's cycle detection.
+         */
+        static int rho(int n) {
+            for (long c = 1; ; c++) {
+                long x = 2;
+                long y = 2;
+                long d = 1;
+                while (d == 1) {
+                    x = (x * x + c) % n;
+                    y = (y * y + c) % n;
+                    y = (y * y + c) % n;
+                    d = gcd(Math.abs(x - y), n);
+                }
+                // d == n: the cycle closed on n, try another polynomial
+                if (d != n) return (int) d;
+            }
+        }
+        
+        private static long powMod(long a, int e, int n) {
+            long r = 1;
+            a %= n;
+            for (; e > 0; e >>= 1) {
+                if ((e & 1) != 0) r = r * a % n;
+                a = a * a % n;
+            }
+            return r;
+        }
+        
+        private static long gcd(long a, long b) {
+            while (b != 0) {
+                long t = a % b;
+                a = b;
+                b = t;
+            }
+            return a;
+        }
+        
+        private static int[] primes(int n) {
+            int count = (int) PrimeList.sieve(n, false);
+            int[] primes = new int[count];
+            PrimeIterator it = PrimeList.iterator(n);
+            for (int i = 0; it.hasNext(); i++) {
+                primes[i] = (int) it.nextPrime();
+            }
+            return primes;
+        }
+    }
+    
+    /** Tabulates segments [from, to) of [lo..hi], splitting them in halves */
+    static class TabulateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final int[] mCounts;
+        final int mLow;
+        final int mHigh;
+        final int mFrom;
+        final int mTo;
+        
+        TabulateTask(int[] counts, int lo, int hi, int from, int to) {
+            mCounts = counts;
+            mLow = lo;
+            mHigh = hi;
+            mFrom = from;
+            mTo = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (mTo - mFrom == 1) {
+                int a = mLow + mFrom * SEGMENT_SIZE;
+                int b = mHigh - a < SEGMENT_SIZE ? mHigh : a + SEGMENT_SIZE - 1;
+                tabulateSegment(mCounts, mLow, a, b);
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new TabulateTask(mCounts, mLow, mHigh, mFrom, mid),
+                new TabulateTask(mCounts, mLow, mHigh, mid, mTo));
+        }
+    }
+    
+    /** Counts the values in [from, to), splitting them in halves */
+    static class CountTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final int[] mValues;
+        final int[] mCounts;
+        final int mFrom;
+        final int mTo;
+        
+        CountTask(int[] values, int[] counts, int from, int to) {
+            mValues = values;
+            mCounts = counts;
+            mFrom = from;
+            mTo = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= BATCH_THRESHOLD) {
+                for (int i = mFrom; i < mTo; i++) {
+                    mCounts[i] = countDecompositionsByFactors(mValues[i]);
+                }
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new CountTask(mValues, mCounts, mFrom, mid),
+                new CountTask(mValues, mCounts, mid, mTo));
+        }
+    }
+    
+    /** 
+     * Counts the decompositions of the values listed in the file at 
+     * <code>args[0]</code>, after their number, up to 100 of them. With 
+     * <code>--bulk</code> before the pathname, there is no limit: values 
+     * are read and counted in batches, on all the cpus.
+     */
     public static void main(String[] args) {
-        checkCondArg(args.length == 1, 
-            "args[0] must be a pathname and the only argument");
+        boolean bulk = args.length == 2 && BULK_FLAG.equals(args[0]);
+        checkCondArg(args.length == 1 || bulk, 
+            "args[0] must be a pathname and the only argument, or " + 
+            BULK_FLAG + " followed by a pathname");
+        String path = args[args.length - 1];
+        String ranges = bulk ? "n must be >= 0" : "n must be in [1, 100]";
         
-        int lineNumber = 1;
-        BufferedReader br = null;
+        NumberReader in = null;
         try {
-            br = new BufferedReader(new FileReader(args[0]));
-            String line = br.readLine();
-            int n = Integer.parseInt(line);
-            checkCondArg(1 <= n && n <= 100, "n must be in [1, 100]");
-            lineNumber++;
+            in = new NumberReader(new File(path));
+            int n = in.nextInt();
+            checkCondArg(bulk ? n >= 0 : 1 <= n && n <= 100, ranges);
             
-            while (n-- > 0 && (line = br.readLine()) != null) {
-                int k = Integer.parseInt(line);
-                // k < 2147483647 checked in parseInt
-                checkCondArg(k >= 0, "x must be in [0, 2147483647]");
-                int count = countDecompositions(k);
-                lineNumber++;
-                System.out.println(count);
+            if (bulk) {
+                countBulk(in, n, System.out);
+            } else {
+                while (n-- > 0 && in.hasNext()) {
+                    int k = checkValue(in.nextInt());
+                    System.out.println(countDecompositions(k));
+                }
             }
         } catch (NumberFormatException e1) {
-            System.err.println("Line " + lineNumber + 
+            System.err.println("Line " + in.lineNumber() + 
                 ": integer cannot be parsed");
             e1.printStackTrace(System.err);
         } catch (IllegalArgumentException e2) {
-            System.err.println("Line " + lineNumber + 
-                ": n must be in [1, 100], x in [0, 2147483647]");
+            System.err.println("Line " + in.lineNumber() + 
+                ": " + ranges + ", x in [0, 2147483647]");
             e2.printStackTrace(System.err);
         } catch (FileNotFoundException e3) {
-            System.err.println("File not found, was: " + args[0]);
+            System.err.println("File not found, was: " + path);
             e3.printStackTrace(System.err);
         } catch (IOException e4) {
             System.err.println("Error reading file");
             e4.printStackTrace(System.err);
         } finally {
-            closeQuietly(br);
+            closeQuietly(in);
+        }
+    }
+    
+    /** 
+     * Reads up to <code>n</code> values from <code>in</code>, a batch at a 
+     * time, and prints their counts one per line.
+     */
+    private static void countBulk(NumberReader in, int n, PrintStream out) 
+            throws IOException {
+        int[] batch = new int[Math.min(n, BULK_BATCH)];
+        ByteBuilder text = new ByteBuilder(TEXT_BUFFER_SIZE);
+        while (n > 0 && in.hasNext()) {
+            int len = 0;
+            while (len < batch.length && n > 0 && in.hasNext()) {
+                batch[len++] = checkValue(in.nextInt());
+                n--;
+            }
+            int[] values = len < batch.length ? 
+                Arrays.copyOf(batch, len) : batch;
+            text.reset();
+            for (int count : countDecompositions(values)) {
+                text.append(count).append(NEWLINE);
+            }
+            text.writeTo(out);
         }
+        out.flush();
+    }
+    
+    private static int checkValue(int k) {
+        // k <= 2147483647 checked in nextInt()
+        checkCondArg(k >= 0, "x must be in [0, 2147483647]");
+        return k;
     }
-}
\ No newline at end of file
+}
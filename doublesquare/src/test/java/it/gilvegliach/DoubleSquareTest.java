@@ -2,9 +2,15 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Random;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -13,6 +19,9 @@ import it.gilvegliach.DoubleSquare;
 public class DoubleSquareTest {
     final static String dataDir = "src/test/resources/";
     
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    
     @Test(expected = IllegalArgumentException.class)
     public void countDecompositionsNegative() {
         DoubleSquare.countDecompositions(-1);
@@ -36,6 +45,113 @@ public class DoubleSquareTest {
         DoubleSquare.countDecompositions(Integer.MAX_VALUE);
     }
     
+    @Test(expected = IllegalArgumentException.class)
+    public void countDecompositionsByFactorsNegative() {
+        DoubleSquare.countDecompositionsByFactors(-1);
+    }
+    
+    @Test
+    public void countDecompositionsByFactorsSmall() {
+        for (int n = 0; n < 100000; n++) {
+            assertEquals(DoubleSquare.countDecompositions(n), 
+                DoubleSquare.countDecompositionsByFactors(n));
+        }
+    }
+    
+    @Test
+    public void countDecompositionsByFactorsLargeFactors() {
+        int[] ns = {
+            Integer.MAX_VALUE,      // prime, 3 mod 4
+            2147483629,             // prime, 1 mod 4
+            2147395600,             // 46340^2
+            46337 * 46337,          // prime^2
+            1031 * 1031 * 1031,     // prime^3, past trial division
+            1033 * 1033 * 1753,
+            1033 * 1049 * 1061,
+            1215306625,             // 5^3 * 13 * 17 * 29 * 37 * 41
+        };
+        for (int n : ns) {
+            assertEquals(DoubleSquare.countDecompositions(n), 
+                DoubleSquare.countDecompositionsByFactors(n));
+        }
+    }
+    
+    @Test
+    public void countDecompositionsBatch() {
+        int[] ns = new int[1000];
+        Random random = new Random(42);
+        for (int i = 0; i < ns.length; i++) {
+            ns[i] = random.nextInt(Integer.MAX_VALUE);
+        }
+        ns[0] = 0;
+        ns[1] = 25;
+        ns[2] = Integer.MAX_VALUE;
+        ns[3] = 2147395600;    // 46340^2
+        
+        int[] counts = DoubleSquare.countDecompositions(ns);
+        assertEquals(ns.length, counts.length);
+        assertEquals(1, counts[0]);
+        assertEquals(2, counts[1]);
+        assertEquals(0, counts[2]);
+        for (int i = 0; i < ns.length; i++) {
+            assertEquals(countBySqrt(ns[i]), counts[i]);
+        }
+    }
+    
+    @Test
+    public void countDecompositionsBatchEmpty() {
+        assertEquals(0, DoubleSquare.countDecompositions(new int[0]).length);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void countDecompositionsBatchNegative() {
+        DoubleSquare.countDecompositions(new int[] { 1, -1, 2 });
+    }
+    
+    /** Straight from the definition, one Math.sqrt() per square */
+    private static int countBySqrt(int n) {
+        int count = 0;
+        int k = (int) Math.sqrt(n / 2.0);
+        for (int t = 0; t <= k; t++) {
+            int q = n - t * t;
+            int s = (int) Math.sqrt(q);
+            if (s * s == q) count++;
+        }
+        return count;
+    }
+    
+    @Test
+    public void tabulateDecompositionsFromZero() {
+        int[] counts = DoubleSquare.tabulateDecompositions(0, 300000);
+        assertEquals(300001, counts.length);
+        for (int k = 0; k < counts.length; k++) {
+            assertEquals(DoubleSquare.countDecompositions(k), counts[k]);
+        }
+    }
+    
+    @Test
+    public void tabulateDecompositionsMaxInt() {
+        // Unaligned, up to the last int
+        int lo = Integer.MAX_VALUE - 200000;
+        int hi = Integer.MAX_VALUE;
+        int[] counts = DoubleSquare.tabulateDecompositions(lo, hi);
+        for (int i = 0; i < counts.length; i++) {
+            int expected = DoubleSquare.countDecompositionsByFactors(lo + i);
+            assertEquals(expected, counts[i]);
+        }
+    }
+    
+    @Test
+    public void tabulateDecompositionsEmpty() {
+        assertEquals(0, DoubleSquare.tabulateDecompositions(10, 9).length);
+        assertEquals(2, DoubleSquare.tabulateDecompositions(25, 25)[0]);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void tabulateDecompositionsNegative() {
+        DoubleSquare.tabulateDecompositions(-1, 10);
+    }
+    
     @Test(expected = IllegalArgumentException.class)
     public void mainNoArgs() {
         DoubleSquare.main(new String[] { });
@@ -63,4 +179,34 @@ public class DoubleSquareTest {
             System.setOut(out);
         }
     }
+    
+    @Test
+    public void mainBulk() throws IOException {
+        // Way past the 100 values of the normal mode
+        int n = 100000;
+        StringBuilder in = new StringBuilder().append(n).append('\n');
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            int k = Integer.MAX_VALUE - 3 * i;
+            in.append(k).append('\n');
+            expected.append(DoubleSquare.countDecompositions(k)).append('\n');
+        }
+        File file = mFolder.newFile();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(in.toString().getBytes("US-ASCII"));
+        } finally {
+            fos.close();
+        }
+        
+        PrintStream out = System.out;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(baos));
+        try {
+            DoubleSquare.main(new String[] { "--bulk", file.getPath() });
+            assertEquals(expected.toString(), baos.toString());
+        } finally {
+            System.setOut(out);
+        }
+    }
 }
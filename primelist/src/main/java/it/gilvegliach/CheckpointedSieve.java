@@ -0,0 +1,292 @@
+package it.gilvegliach;
+
+import static it.gilvegliach.Utils.checkCondArg;
+import static it.gilvegliach.Utils.checkNonNullArg;
+import static it.gilvegliach.Utils.closeQuietly;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+
+/**
+ * Prints the primes of a range to a file, as
+ * {@link PrimeList#sieve(long, long, java.io.PrintStream)} would, saving
+ * its progress to a small state file every so often, so that a run that
+ * dies can be resumed where it was instead of from scratch.
+ * <p>
+ * A checkpoint is taken between blocks: the output is synced to disk, then
+ * the next number to sieve, the count so far and the output length are
+ * written to a temporary file renamed over the state. Resuming truncates
+ * the output to that length, dropping whatever was written after it, and
+ * carries on sieving from there, with the base primes sieved again. The
+ * state is kept once done, so resuming a run that completed does nothing.
+ * <p>
+ * Interrupting the thread of a run stops it at the next block, after a
+ * checkpoint. That's what the main does on SIGTERM, as on eviction.
+ */
+public class CheckpointedSieve {
+    static final long DEFAULT_CHECKPOINT_MILLIS = 10000;
+    private static final long SHUTDOWN_WAIT_MILLIS = 30000;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final String LO = "lo";
+    private static final String HI = "hi";
+    private static final String NEXT = "next";
+    private static final String COUNT = "count";
+    private static final String BYTES = "bytes";
+    private static final String DONE = "done";
+
+    private final File mOutput;
+    private final File mState;
+    private final long mCheckpointMillis;
+
+    /** State next to the output, checkpoints every 10 seconds */
+    public CheckpointedSieve(File output) {
+        this(output, new File(output.getPath() + ".state"),
+            DEFAULT_CHECKPOINT_MILLIS);
+    }
+
+    /** Checkpoints every <code>checkpointMillis</code>, 0 for every block */
+    public CheckpointedSieve(File output, File state, long checkpointMillis) {
+        checkNonNullArg(output, "output must not be null");
+        checkNonNullArg(state, "state must not be null");
+        checkCondArg(checkpointMillis >= 0, "checkpointMillis must be >= 0");
+        mOutput = output;
+        mState = state;
+        mCheckpointMillis = checkpointMillis;
+    }
+
+    /**
+     * Counts the primes in <code>[lo..hi]</code>, printing them on the
+     * output. If <code>resume</code> and there's a state for the same range,
+     * it goes on from there, otherwise it starts over. Throws
+     * InterruptedIOException if it's stopped by an interrupt.
+     */
+    public long run(long lo, long hi, boolean resume) throws IOException {
+        checkCondArg(0L <= lo && hi <= PrimeList.MAX_N,
+            "[lo, hi] must be in [0, 10^13]");
+
+        Progress progress = new Progress(lo);
+        if (resume && mState.exists()) {
+            Properties state = read(mState);
+            if (get(state, LO) != lo || get(state, HI) != hi) {
+                throw new IOException("State " + mState + " is for ["
+                    + get(state, LO) + ", " + get(state, HI) + "]");
+            }
+            progress.mNext = get(state, NEXT);
+            progress.mCount = get(state, COUNT);
+            progress.mBytes = get(state, BYTES);
+            if (Boolean.parseBoolean(state.getProperty(DONE))) {
+                return progress.mCount;
+            }
+        }
+        truncate(progress.mBytes);
+
+        FileOutputStream file = new FileOutputStream(mOutput, true);
+        OutputStream out = new BufferedOutputStream(file, BUFFER_SIZE);
+        try {
+            Sink sink = new Sink(lo, hi, progress, file, out);
+            sink.checkpoint(false);
+            if (progress.mNext <= hi && hi >= 2) {
+                PrimeList.sieveRange(progress.mNext, hi, sink);
+            }
+            if (progress.mCount > 0) {
+                out.write(PrimeList.NEWLINE);
+                progress.mBytes++;
+            }
+            progress.mNext = hi + 1;
+            sink.checkpoint(true);
+            return progress.mCount;
+        } catch (Stopped e) {
+            InterruptedIOException stopped = new InterruptedIOException(
+                "Stopped at " + progress.mNext + ", resume to go on");
+            stopped.initCause(e);
+            throw stopped;
+        } catch (WriteFailed e) {
+            throw e.getCause();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /** Drops the output past the checkpoint, or all of it when starting */
+    private void truncate(long bytes) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mOutput, "rw");
+        try {
+            if (file.length() < bytes) {
+                throw new IOException("Output " + mOutput + " is shorter than"
+                    + " its checkpoint, " + bytes + " bytes");
+            }
+            file.setLength(bytes);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static long get(Properties state, String key) throws IOException {
+        String value = state.getProperty(key);
+        if (value == null) throw new IOException("State without " + key);
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("State " + key + " not a number: " + value);
+        }
+    }
+
+    private static Properties read(File file) throws IOException {
+        Properties state = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            state.load(in);
+        } finally {
+            closeQuietly(in);
+        }
+        return state;
+    }
+
+    /** Position of a run: all below mNext is in the first mBytes bytes */
+    static class Progress {
+        long mNext;
+        long mCount;
+        long mBytes;
+
+        Progress(long next) {
+            mNext = next;
+        }
+    }
+
+    /** Writes the blocks out, checkpointing between them */
+    class Sink implements PrimeList.BlockSink {
+        private final long mLow;
+        private final long mHigh;
+        private final Progress mProgress;
+        private final FileOutputStream mFile;
+        private final OutputStream mOut;
+        private long mLastCheckpoint;
+
+        Sink(long lo, long hi, Progress progress, FileOutputStream file,
+                OutputStream out) {
+            mLow = lo;
+            mHigh = hi;
+            mProgress = progress;
+            mFile = file;
+            mOut = out;
+        }
+
+        @Override
+        public void write(long lo, long hi, ByteBuilder text, long count) {
+            try {
+                // The first separator of the output is left out
+                int skip = mProgress.mBytes == 0 && text.size() > 0 ? 1 : 0;
+                mOut.write(text.array(), skip, text.size() - skip);
+                mProgress.mBytes += text.size() - skip;
+                mProgress.mCount += count;
+                mProgress.mNext = hi + 1;
+
+                boolean stop = Thread.interrupted();
+                long now = System.currentTimeMillis();
+                if (stop || now - mLastCheckpoint >= mCheckpointMillis) {
+                    checkpoint(false);
+                }
+                if (stop) throw new Stopped();
+            } catch (IOException e) {
+                throw new WriteFailed(e);
+            }
+        }
+
+        /** Syncs the output, then replaces the state */
+        void checkpoint(boolean done) throws IOException {
+            mOut.flush();
+            mFile.getFD().sync();
+
+            Properties state = new Properties();
+            state.setProperty(LO, String.valueOf(mLow));
+            state.setProperty(HI, String.valueOf(mHigh));
+            state.setProperty(NEXT, String.valueOf(mProgress.mNext));
+            state.setProperty(COUNT, String.valueOf(mProgress.mCount));
+            state.setProperty(BYTES, String.valueOf(mProgress.mBytes));
+            state.setProperty(DONE, String.valueOf(done));
+
+            File dir = mState.getAbsoluteFile().getParentFile();
+            File tmp = File.createTempFile("primelist", ".state", dir);
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(tmp);
+                state.store(out, null);
+                out.getFD().sync();
+                out.close();
+                out = null;
+                if (!tmp.renameTo(mState)) {
+                    // Not atomic where rename doesn't replace: the old state
+                    // is gone for a moment, and a crash then starts over
+                    mState.delete();
+                    if (!tmp.renameTo(mState)) {
+                        throw new IOException("Cannot write " + mState);
+                    }
+                }
+            } finally {
+                closeQuietly(out);
+                tmp.delete();
+            }
+            mLastCheckpoint = System.currentTimeMillis();
+        }
+    }
+
+    /** Thrown through the sieve to stop it */
+    static class Stopped extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** Carries an IOException of the output through the sieve */
+    static class WriteFailed extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        WriteFailed(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean resume = args.length > 0 && args[0].equals("--resume");
+        int first = resume ? 1 : 0;
+        checkCondArg(args.length - first == 2,
+            "Usage: CheckpointedSieve [--resume] <n> <output>");
+        long n = Long.parseLong(args[first]);
+        checkCondArg(0L <= n && n <= PrimeList.MAX_N, "n must be in [0, 10^13]");
+        File output = new File(args[first + 1]);
+
+        // On SIGTERM, stop at the next block with a checkpoint
+        final Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                main.interrupt();
+                try {
+                    main.join(SHUTDOWN_WAIT_MILLIS);
+                } catch (InterruptedException ignored) {
+                    // Exiting anyway
+                }
+            }
+        });
+
+        try {
+            long count = new CheckpointedSieve(output).run(0, n - 1, resume);
+            System.err.println(count + " primes written to " + output);
+        } catch (InterruptedIOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
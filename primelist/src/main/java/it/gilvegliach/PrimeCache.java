@@ -0,0 +1,359 @@
+package it.gilvegliach;
+
+import static it.gilvegliach.Utils.checkCondArg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import it.gilvegliach.PrimeList.SegmentSieve;
+
+/**
+ * Primes sieved once and kept across queries, for long-lived processes.
+ * Numbers are sieved in chunks of one block, {@link PrimeList#BLOCK_SPAN}
+ * numbers. The count of every chunk sieved so far is kept for good, while
+ * the bits of at most a given number of chunks are kept, evicting those not
+ * used lately, as a clock does; they're sieved again when needed. Chunks
+ * are sieved up to a limit only: queries past it are answered by
+ * {@link PrimeCounter} or by sieving just their range, and leave the cache
+ * as it is.
+ * <p>
+ * Safe for concurrent use. Queries below the bound sieved so far take no
+ * lock: the counts are published as an immutable snapshot, replaced by a
+ * longer copy when a query goes past the bound, and the chunks kept are
+ * looked up in an array of references. Only adding a chunk, and evicting
+ * another, locks. Missing chunks past the bound, and no others, are sieved
+ * by the workers of {@link PrimeList}, while queries past the bound wait.
+ */
+public final class PrimeCache {
+    private static final int CHUNK_WORDS = PrimeList.BLOCK_BYTES >> 3;
+    private static final int CHUNK_BITS = CHUNK_WORDS << 6;
+    private static final long CHUNK_SPAN = PrimeList.BLOCK_SPAN;
+    private static final long CHUNK_MEMORY = 9L * PrimeList.BLOCK_BYTES / 8;
+    private static final int BLOCK_WORDS = 8;  // words per count in a chunk
+
+    private static final int[] SMALL_PI = { 0, 0, 1, 2, 2, 3, 3 };
+    private static final long DEFAULT_LIMIT = 1L << 32;
+    // Numbers sieved at once looking for the next prime past the limit,
+    // well above the largest gap below MAX_N
+    private static final long NEXT_PRIME_WINDOW = 1 << 16;
+
+    private final int mMaxChunks;
+    private final int mLimitChunks;     // chunks that may ever be sieved
+    private final Chunks mChunks;
+    private volatile State mState = new State(0, new long[1], new int[0]);
+
+    /** Same as {@link #PrimeCache(long, long)}, up to 2^32 */
+    public PrimeCache(long maxBytes) {
+        this(maxBytes, DEFAULT_LIMIT);
+    }
+
+    /**
+     * Keeps the bits of up to <code>maxBytes</code> of chunks, each about
+     * 1.1 mb, at least one anyway, and sieves chunks below 
+     * <code>limit</code> only.
+     */
+    public PrimeCache(long maxBytes, long limit) {
+        checkCondArg(maxBytes >= 0, "maxBytes must be >= 0");
+        checkCondArg(0L <= limit && limit <= PrimeList.MAX_N,
+            "limit must be in [0, 10^13]");
+        long max = maxBytes / CHUNK_MEMORY;
+        mMaxChunks = (int) Math.max(1, Math.min(max, Integer.MAX_VALUE));
+        mLimitChunks = (int) ((limit + CHUNK_SPAN - 1) / CHUNK_SPAN);
+        mChunks = new Chunks(mLimitChunks, mMaxChunks);
+    }
+
+    /** Numbers below the bound are sieved and counted */
+    public long bound() {
+        return mState.mChunks * CHUNK_SPAN;
+    }
+
+    /** 
+     * Numbers below the limit are answered by the cache, the others without:
+     * it's the limit of the constructor, rounded up to whole chunks.
+     */
+    public long limit() {
+        return mLimitChunks * CHUNK_SPAN;
+    }
+
+    /** Number of primes in <code>[0..x]</code> */
+    public long pi(long x) {
+        checkRange(x);
+        if (x < 7) return SMALL_PI[(int) x];
+
+        int c = (int) (x / CHUNK_SPAN);
+        if (c >= mLimitChunks) return PrimeCounter.pi(x);
+        State state = state(c);
+        long base = c * CHUNK_SPAN;
+        int k = PrimeList.wheelIndex(base, x + 1);
+        return 3 + state.mCounts[c] + chunk(c, state).count(k);
+    }
+
+    /** Number of primes in <code>[lo..hi]</code> */
+    public long count(long lo, long hi) {
+        checkCondArg(0L <= lo && hi <= PrimeList.MAX_N,
+            "[lo, hi] must be in [0, 10^13]");
+        if (lo > hi) return 0;
+        // The sieve counts a window past the limit faster than pi() twice
+        if (hi >= limit()) return PrimeList.sieve(lo, hi, null);
+        return pi(hi) - (lo > 0 ? pi(lo - 1) : 0);
+    }
+
+    public boolean isPrime(long x) {
+        checkRange(x);
+        if (x < 7) return x == 2 || x == 3 || x == 5;
+
+        int c = (int) (x / CHUNK_SPAN);
+        if (c >= mLimitChunks) return PrimeList.sieve(x, x, null) == 1;
+        long base = c * CHUNK_SPAN;
+        int k = PrimeList.wheelIndex(base, x);
+        if (PrimeList.wheelNumber(base, k) != x) return false;
+        return chunk(c, state(c)).get(k);
+    }
+
+    /** 
+     * Smallest prime > <code>x</code>, sieving past the bound if need be,
+     * and by windows past the limit.
+     */
+    public long nextPrime(long x) {
+        checkCondArg(0L <= x && x < PrimeList.MAX_N,
+            "x must be in [0, 10^13)");
+        if (x < 2) return 2;
+        if (x < 3) return 3;
+        if (x < 5) return 5;
+
+        long i = x + 1;
+        int c = (int) (i / CHUNK_SPAN);
+        if (c < mLimitChunks) {
+            int k = PrimeList.wheelIndex(c * CHUNK_SPAN, i);
+            while (c < mLimitChunks) {
+                k = chunk(c, state(c)).nextSetBit(k);
+                if (k < CHUNK_BITS) {
+                    return PrimeList.wheelNumber(c * CHUNK_SPAN, k);
+                }
+                c++;
+                k = 0;
+            }
+            i = limit();
+        }
+        while (true) {
+            long hi = Math.min(i + NEXT_PRIME_WINDOW, PrimeList.MAX_N);
+            PrimeIterator it = PrimeList.iterator(i, hi);
+            if (it.hasNext()) return it.nextPrime();
+            checkCondArg(hi < PrimeList.MAX_N, "No prime past x below 10^13");
+            i = hi + 1;
+        }
+    }
+
+    private static void checkRange(long x) {
+        checkCondArg(0L <= x && x <= PrimeList.MAX_N, 
+            "x must be in [0, 10^13]");
+    }
+
+    /** The current snapshot, extended to chunk <code>c</code> if need be */
+    private State state(int c) {
+        State state = mState;
+        return c < state.mChunks ? state : extend(c + 1);
+    }
+
+    /**
+     * Sieves chunks up to <code>chunks</code> (excluded) that were never
+     * sieved, in parallel, and publishes their counts.
+     */
+    private synchronized State extend(int chunks) {
+        final State state = mState;
+        if (chunks <= state.mChunks) return state;
+
+        // Base primes of the new chunks: sieving them again is cheap
+        long end = chunks * CHUNK_SPAN;
+        final int[] primes = PrimeList.sieveInitial(PrimeList.isqrt(end - 1));
+
+        // Copy on extend: readers keep using the old snapshot meanwhile
+        long[] counts = new long[chunks + 1];
+        System.arraycopy(state.mCounts, 0, counts, 0, state.mChunks + 1);
+        
+        // A batch of chunks per worker at a time, not to hold them all
+        int batch = PrimeList.POOL.getParallelism();
+        try {
+            for (int from = state.mChunks; from < chunks; from += batch) {
+                int to = Math.min(from + batch, chunks);
+                List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+                for (int c = from; c < to; c++) {
+                    final int chunk = c;
+                    tasks.add(new Callable<Chunk>() {
+                        @Override
+                        public Chunk call() {
+                            return sieveChunk(chunk, primes);
+                        }
+                    });
+                }
+                List<Future<Chunk>> futures = PrimeList.POOL.invokeAll(tasks);
+                for (int c = from; c < to; c++) {
+                    Chunk chunk = futures.get(c - from).get();
+                    counts[c + 1] = counts[c] + chunk.total();
+                    cache(c, chunk);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        State extended = new State(chunks, counts, primes);
+        mState = extended;
+        return extended;
+    }
+
+    /** Chunk <code>c</code>, sieved again if it was evicted */
+    private Chunk chunk(int c, State state) {
+        Chunk chunk = mChunks.get(c);
+        if (chunk == null) {
+            // Racing threads may sieve it twice, but only one is kept
+            chunk = cache(c, sieveChunk(c, state.mPrimes));
+        }
+        return chunk;
+    }
+
+    /** Adds a chunk, unless another thread did, evicting past the max */
+    private Chunk cache(int c, Chunk chunk) {
+        return mChunks.put(c, chunk);
+    }
+
+    /** Sieves chunk <code>c</code> on the sieve of the current thread */
+    private static Chunk sieveChunk(int c, int[] primes) {
+        long base = c * CHUNK_SPAN;
+        long[] words = new long[CHUNK_WORDS];
+        SegmentSieve sieve = PrimeList.segmentSieve(primes);
+        sieve.startBlock(base, PrimeList.BLOCK_BYTES);
+        while (sieve.nextSegment()) {
+            // Whole segments: they start at multiples of 240, that is a word
+            int from = (int) ((sieve.mBase - base) / 240);
+            int n = sieve.mBytes >> 3;
+            for (int w = 0; w < n; w++) {
+                words[from + w] = ~sieve.mBits.word(w);
+            }
+        }
+        return new Chunk(words);
+    }
+
+    /**
+     * Chunks kept, by index. Lookups don't lock, they only mark the chunk
+     * as used. Adding one past the max evicts the first chunk not used
+     * since it was added or the clock hand last went by, clearing the marks
+     * on the way.
+     */
+    static class Chunks {
+        private final AtomicReferenceArray<Chunk> mChunks;
+        // Indexes of the chunks kept, swept by the hand, guarded by this
+        private final int[] mRing;
+        private int mSize;
+        private int mHand;
+
+        Chunks(int count, int max) {
+            mChunks = new AtomicReferenceArray<Chunk>(count);
+            mRing = new int[Math.max(1, Math.min(max, count))];
+        }
+
+        /** Chunk <code>c</code>, or null if it's not kept */
+        Chunk get(int c) {
+            Chunk chunk = mChunks.get(c);
+            // Written only if need be, not to bounce the line across cpus
+            if (chunk != null && !chunk.mUsed) chunk.mUsed = true;
+            return chunk;
+        }
+
+        /** Adds a chunk, or returns the one kept already */
+        synchronized Chunk put(int c, Chunk chunk) {
+            Chunk prev = mChunks.get(c);
+            if (prev != null) return prev;
+            if (mSize < mRing.length) {
+                mRing[mSize++] = c;
+            } else {
+                // At most a round of second chances, then the hand's one
+                for (int i = 0; i < mRing.length; i++) {
+                    Chunk kept = mChunks.get(mRing[mHand]);
+                    if (!kept.mUsed) break;
+                    kept.mUsed = false;
+                    mHand = (mHand + 1) % mRing.length;
+                }
+                mChunks.set(mRing[mHand], null);
+                mRing[mHand] = c;
+                mHand = (mHand + 1) % mRing.length;
+            }
+            mChunks.set(c, chunk);
+            return chunk;
+        }
+    }
+
+    /** Counts published so far, never modified */
+    static class State {
+        final int mChunks;     // chunks sieved, from 0
+        final long[] mCounts;  // primes > 5 before each chunk, and in all
+        final int[] mPrimes;   // base primes of all the chunks
+
+        State(int chunks, long[] counts, int[] primes) {
+            mChunks = chunks;
+            mCounts = counts;
+            mPrimes = primes;
+        }
+    }
+
+    /**
+     * Wheel bits of a chunk, flipped so that primes are set, with the
+     * number of those before every 8 words.
+     */
+    static class Chunk {
+        final long[] mWords;
+        final int[] mCounts;
+        volatile boolean mUsed;     // since added or last swept by the hand
+
+        Chunk(long[] words) {
+            mWords = words;
+            mCounts = new int[words.length / BLOCK_WORDS + 1];
+            int count = 0;
+            for (int w = 0; w < words.length; w++) {
+                if (w % BLOCK_WORDS == 0) {
+                    mCounts[w / BLOCK_WORDS] = count;
+                }
+                count += Long.bitCount(words[w]);
+            }
+            mCounts[mCounts.length - 1] = count;
+        }
+
+        boolean get(int k) {
+            return (mWords[k >> 6] & (1L << (k & 0x3F))) != 0;
+        }
+
+        /** Number of bits set in <code>[0, k)</code> */
+        int count(int k) {
+            int w = k >> 6;
+            if (w == mWords.length) return total();
+            int count = mCounts[w / BLOCK_WORDS];
+            for (int i = w - w % BLOCK_WORDS; i < w; i++) {
+                count += Long.bitCount(mWords[i]);
+            }
+            long bits = mWords[w] & ((1L << (k & 0x3F)) - 1);
+            return count + Long.bitCount(bits);
+        }
+
+        /** Index of the first bit set from <code>k</code>, or CHUNK_BITS */
+        int nextSetBit(int k) {
+            int w = k >> 6;
+            if (w == mWords.length) return CHUNK_BITS;
+            long word = mWords[w] & (-1L << (k & 0x3F));
+            while (word == 0) {
+                if (++w == mWords.length) return CHUNK_BITS;
+                word = mWords[w];
+            }
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+
+        int total() {
+            return mCounts[mCounts.length - 1];
+        }
+    }
+}
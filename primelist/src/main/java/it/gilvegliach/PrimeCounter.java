@@ -0,0 +1,185 @@
+package it.gilvegliach;
+
+import static it.gilvegliach.Utils.checkCondArg;
+
+import it.gilvegliach.PrimeList.SegmentSieve;
+
+/**
+ * Counts primes without listing them, by the Meissel-Lehmer method:
+ * <pre>
+ *     pi(x) = phi(x, a) + a - 1 - P2(x, a)
+ * </pre>
+ * where a = pi(y), y = cbrt(x), phi(x, a) counts the numbers in [1..x] with
+ * no prime factor among the first a primes and
+ * <pre>
+ *     P2(x, a) = sum of pi(x / p) - pi(p) + 1 for y < p <= sqrt(x)
+ * </pre>
+ * counts those with exactly two. The values of pi() needed are up to
+ * x^(2/3): they're looked up in a table built by the segmented sieve. The
+ * time is about <code>O(x^(2/3))</code> and so is the memory, though with
+ * a small constant: 1 bit every 30/8 numbers plus a count every 64 bits.
+ */
+public final class PrimeCounter {
+    // phi(x, a) for a <= SMALL_A is read from a table, repeating every
+    // 2 * 3 * 5 * 7 * 11 * 13 = 30030 numbers
+    private static final int SMALL_A = 6;
+    private static final int[] SMALL_PRIMES = { 2, 3, 5, 7, 11, 13 };
+    private static final int[] PRIMORIALS = new int[SMALL_A + 1];
+    private static final int[][] SMALL_PHI = new int[SMALL_A + 1][];
+    private static final int[] TOTIENTS = new int[SMALL_A + 1];
+    
+    static {
+        PRIMORIALS[0] = 1;
+        SMALL_PHI[0] = new int[] { 0 };
+        TOTIENTS[0] = 1;
+        for (int a = 1; a <= SMALL_A; a++) {
+            int p = SMALL_PRIMES[a - 1];
+            int prod = PRIMORIALS[a - 1] * p;
+            PRIMORIALS[a] = prod;
+
+            // phi(x, a) = number of integers in [1..x] coprime with prod
+            int[] phi = new int[prod];
+            for (int x = 1; x < prod; x++) {
+                boolean coprime = true;
+                for (int i = 0; i < a && coprime; i++) {
+                    coprime = x % SMALL_PRIMES[i] != 0;
+                }
+                phi[x] = phi[x - 1] + (coprime ? 1 : 0);
+            }
+            SMALL_PHI[a] = phi;
+            TOTIENTS[a] = phi[prod - 1];
+        }
+    }
+    
+    // Primes up to sqrt(x), and pi() up to x^(2/3)
+    private final int[] mPrimes;
+    private final PiTable mTable;
+    
+    private PrimeCounter(int[] primes, PiTable table) {
+        mPrimes = primes;
+        mTable = table;
+    }
+    
+    /** Number of primes in <code>[0..x]</code> */
+    public static long pi(long x) {
+        checkCondArg(0L <= x && x <= PrimeList.MAX_N, "x must be in [0, 10^13]");
+        
+        // Small x's: just sieve, see also the pre condition of phi()
+        if (x < PrimeList.largeNThreshold()) {
+            return PrimeList.sieve(0, x, null);
+        }
+        
+        long y = icbrt(x);
+        int[] primes = PrimeList.sieveInitial(PrimeList.isqrt(x));
+        int a = PrimeList.lowerBound(primes, y + 1);
+        PrimeCounter counter = new PrimeCounter(primes, new PiTable(x / y));
+        
+        long count = counter.phi(x, a) + a - 1;
+        for (int i = a; i < primes.length; i++) {
+            // p = primes[i] = p_(i+1), so pi(p) - 1 = i
+            count -= counter.mTable.pi(x / primes[i]) - i;
+        }
+        return count;
+    }
+    
+    /** 
+     * Numbers in <code>[1..x]</code> not divisible by any of the first 
+     * <code>a</code> primes.
+     */
+    private long phi(long x, int a) {
+        // Pre condition: mPrimes has at least a + 1 primes
+        if (a <= SMALL_A) {
+            int prod = PRIMORIALS[a];
+            return (x / prod) * TOTIENTS[a] + SMALL_PHI[a][(int) (x % prod)];
+        }
+        
+        // No multiples of the first a primes but 1 below p_(a+1)^2 and
+        // no numbers at all below p_(a+1), apart from the primes
+        long next = mPrimes[a];
+        if (x < next) return x >= 1 ? 1 : 0;
+        if (x < next * next && x <= mTable.limit()) {
+            return mTable.pi(x) - a + 1;
+        }
+        
+        // Unrolls phi(x, a) = phi(x, a - 1) - phi(x / p_a, a - 1)
+        long sum = phi(x, SMALL_A);
+        for (int i = SMALL_A + 1; i <= a; i++) {
+            long p = mPrimes[i - 1];
+            long y = x / p;
+            if (y < p) {
+                // phi(y, i - 1) = 1 from now on, as y keeps below p_i
+                sum -= a - i + 1;
+                break;
+            }
+            sum -= phi(y, i - 1);
+        }
+        return sum;
+    }
+    
+    /** Floor of the cube root of <code>n >= 0</code> */
+    static long icbrt(long n) {
+        long r = (long) Math.cbrt(n);
+        // Fix rounding errors of the floating point root
+        while (r * r * r > n) r--;
+        while ((r + 1) * (r + 1) * (r + 1) <= n) r++;
+        return r;
+    }
+    
+    /**
+     * Table of pi() up to a limit. Stores the wheel bits of the segmented
+     * sieve, flipped so that primes are set, and the number of primes before
+     * each word.
+     */
+    static class PiTable {
+        private static final int[] SMALL_PI = { 0, 0, 1, 2, 2, 3, 3 };
+        
+        private final long mLimit;
+        private final long[] mWords;
+        private final int[] mCounts;
+        
+        PiTable(long limit) {
+            // Pre condition: limit >= 7
+            mLimit = limit;
+            int nwords = (PrimeList.wheelIndex(0, limit + 1) >> 6) + 1;
+            mWords = new long[nwords];
+            mCounts = new int[nwords];
+            
+            int[] primes = PrimeList.sieveInitial(PrimeList.isqrt(limit));
+            SegmentSieve sieve = new SegmentSieve(primes);
+            for (long base = 0; base <= limit; base += PrimeList.BLOCK_SPAN) {
+                sieve.startBlock(base, PrimeList.blockBytes(base, limit));
+                while (sieve.nextSegment()) {
+                    // Segments start at multiples of BLOCK_SPAN or of
+                    // 30 * SEGMENT_BYTES, hence of 240, that is 64 bits
+                    int from = (int) (sieve.mBase / 240);
+                    int n = (sieve.mBytes + 7) >> 3;
+                    n = n < nwords - from ? n : nwords - from;
+                    for (int w = 0; w < n; w++) {
+                        mWords[from + w] = ~sieve.mBits.word(w);
+                    }
+                }
+            }
+            
+            int count = 0;
+            for (int w = 0; w < nwords; w++) {
+                mCounts[w] = count;
+                count += Long.bitCount(mWords[w]);
+            }
+        }
+        
+        long limit() {
+            return mLimit;
+        }
+        
+        /** Number of primes in <code>[0..x]</code>, x <= limit() */
+        long pi(long x) {
+            if (x < 7) return SMALL_PI[(int) x];
+            
+            // Bits k mapping numbers <= x, plus 2, 3 and 5 
+            int k = PrimeList.wheelIndex(0, x + 1);
+            int w = k >> 6;
+            long bits = mWords[w] & ((1L << (k & 0x3F)) - 1);
+            return 3 + mCounts[w] + Long.bitCount(bits);
+        }
+    }
+}
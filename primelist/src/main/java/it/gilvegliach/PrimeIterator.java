@@ -0,0 +1,135 @@
+package it.gilvegliach;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import it.gilvegliach.PrimeList.SegmentSieve;
+
+/**
+ * Pull-based iterator over the primes in a range, in increasing order. It
+ * walks the same segments of {@link PrimeList#sieve(long, boolean)}, but
+ * sieves them lazily on the calling thread: memory stays
+ * <code>O(sqrt(n))</code>. Primes are returned unboxed by 
+ * {@link #nextPrime()}: {@link #next()} boxes them, for code taking any
+ * Iterator. Removing is not supported.
+ *
+ * Obtain instances through {@link PrimeList#iterator(long)}.
+ */
+public final class PrimeIterator implements Iterator<Long> {
+    private static final int[] NO_PRIMES = new int[0];
+
+    private final int[] mPrimes;
+    private final long mFirst;   // first number to sieve after mPrimes
+    private final long mLast;    // last number to sieve (inclusive), or -1
+    private SegmentSieve mSieve; // blocks are consecutive: offsets always hit
+
+    // Phases: initial primes from lo, then segments
+    private int mPrimeIndex;
+
+    // Current segment, see PrimeList.SegmentSieve for the mapping
+    private long mBlockBase;
+    private int mSegEnd;         // bit past the last one to check
+    private int mCursor;         // next bit to check in the segment
+
+    private long mNext;
+    private boolean mHasNext;
+
+    PrimeIterator(long lo, long hi) {
+        // Same pre-processing of PrimeList.sieve(), see comments there
+        if (lo > hi || hi < 2) {
+            mPrimes = NO_PRIMES;
+            mFirst = 0;
+            mLast = -1;
+            return;
+        }
+        boolean largeN = hi >= PrimeList.largeNThreshold();
+        long limit = largeN ? PrimeList.isqrt(hi) : hi;
+        mPrimes = PrimeList.sieveInitial(limit);
+        mPrimeIndex = PrimeList.lowerBound(mPrimes, lo);
+
+        mFirst = lo > limit ? lo : limit + 1;
+        if (largeN) {
+            mLast = hi;
+            mSieve = new SegmentSieve(mPrimes);
+            startBlock(PrimeList.blockStart(mFirst));
+        } else {
+            mLast = -1;
+        }
+        advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return mHasNext;
+    }
+
+    /** Returns the next prime, or throws if there are none left. */
+    public long nextPrime() {
+        if (!mHasNext) {
+            throw new NoSuchElementException();
+        }
+        long p = mNext;
+        advance();
+        return p;
+    }
+
+    /** Same as {@link #nextPrime()}, boxed */
+    @Override
+    public Long next() {
+        return nextPrime();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Primes can't be removed");
+    }
+
+    /** Moves to the next prime, setting mNext and mHasNext */
+    private void advance() {
+        if (mPrimeIndex < mPrimes.length) {
+            mNext = mPrimes[mPrimeIndex++];
+            mHasNext = true;
+            return;
+        }
+        while (mSieve != null) {
+            int k = mSieve.mBits.nextClearBit(mCursor, mSegEnd);
+            if (k < mSegEnd) {
+                mCursor = k + 1;
+                mNext = PrimeList.wheelNumber(mSieve.mBase, k);
+                mHasNext = true;
+                return;
+            }
+
+            if (!nextSegment()) {
+                long next = mBlockBase + PrimeList.BLOCK_SPAN;
+                if (next <= mLast) {
+                    startBlock(next);
+                } else {
+                    // Exhausted: drop the sieve early, it's the bulk of memory
+                    mSieve = null;
+                }
+            }
+        }
+        mHasNext = false;
+    }
+
+    private void startBlock(long base) {
+        mBlockBase = base;
+        mSieve.startBlock(base, PrimeList.blockBytes(base, mLast));
+        mSegEnd = 0;
+        mCursor = 0;
+    }
+
+    /** Sieves the next segment of the block, skipping what's below mFirst */
+    private boolean nextSegment() {
+        while (mSieve.nextSegment()) {
+            long base = mSieve.mBase;
+            long end = base + 30L * mSieve.mBytes;
+            if (mFirst >= end) continue;
+            mCursor = mFirst > base ? PrimeList.wheelIndex(base, mFirst) : 0;
+            mSegEnd = PrimeList.wheelIndex(base, mLast < end ? mLast + 1 : end);
+            return true;
+        }
+        return false;
+    }
+}
@@ -4,310 +4,1184 @@ import static it.gilvegliach.Utils.checkCondArg;
 import static it.gilvegliach.Utils.checkNonNullArg;
 import static it.gilvegliach.Utils.closeQuietly;
 
-import java.util.List;
-import java.util.ArrayList;
 import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Arrays;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
+import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Properties;
 
 /** Solves https://www.codeeval.com/public_sc/46/ */
 public class PrimeList {
-    private static final String SEPARATOR = ",";
-    private static final int SEGMENT_SIZE = 1 << 23;   // bit arrays of 1 mb 
-    private static final int MAX_TASKS_IN_MEMORY = 10; // 10 mb
-    private static final int N_CPUS = Runtime.getRuntime().availableProcessors();
-    private static final int POOL_SIZE = N_CPUS > 2 ? N_CPUS - 1 : 2;
-    private static  long LARGE_N_THRESHOLD = 1000000;  // found empirically
+    static final byte SEPARATOR = ',';
+    static final byte NEWLINE = '\n';
+    private static final int BUFFER_SIZE = 1 << 16;
+    static final int BLOCK_BYTES = 1 << 20;     // 1 mb of bits per task
+    static final long BLOCK_SPAN = 30L * BLOCK_BYTES;
+    private static final int DEFAULT_SEGMENT_BYTES = 1 << 18;
+    private static final int MIN_SEGMENT_BYTES = 1 << 12;
+    // Settings tuned for the host by PrimeListTuner, if any. System 
+    // properties take precedence
+    private static final Properties PROFILE = PrimeListTuner.loadProfile();
+    static final int SEGMENT_BYTES = segmentBytes();  // sieved in cache
+    static final int MAX_TASKS_IN_MEMORY = 10;
+    private static final int MAX_THREADS = 0x7fff;    // as ForkJoinPool
+    // Workers: one per cpu available, unless tuned or set with 
+    // primelist.threads
+    private static final int N_THREADS = (int) PrimeListTuner.setting(PROFILE,
+        PrimeListTuner.THREADS, availableCpus(), 1, MAX_THREADS);
+    static final ForkJoinPool POOL = new ForkJoinPool(N_THREADS);
+    private static final ThreadLocal<SegmentSieve> SIEVES = 
+        new ThreadLocal<SegmentSieve>();
+    
+    // Formatting buffers, reused across blocks and calls. Each holds the primes
+    // of a block, up to about 15 mb of text near MAX_N: those larger than 
+    // MAX_POOLED_BYTES are reused within a call only, so that an idle process
+    // keeps at most MAX_TASKS_IN_MEMORY of the smaller ones
+    private static final int MAX_POOLED_BYTES = 2 * BLOCK_BYTES;
+    private static final ArrayBlockingQueue<ByteBuilder> BUFFERS =
+        new ArrayBlockingQueue<ByteBuilder>(MAX_TASKS_IN_MEMORY);
+    // Sieved in a single pass below it, by segments from it. At least 25, as
+    // segments need the wheel primes 2, 3 and 5 among the base primes, and
+    // below 2^31, as the single pass indexes an int. Found empirically, 
+    // unless tuned or set with primelist.largeNThreshold
+    static final long MIN_LARGE_N_THRESHOLD = 25;
+    static final long MAX_LARGE_N_THRESHOLD = Integer.MAX_VALUE;
+    private static volatile long sLargeNThreshold = PrimeListTuner.setting(
+        PROFILE, PrimeListTuner.LARGE_N_THRESHOLD, 1000000, 
+        MIN_LARGE_N_THRESHOLD, MAX_LARGE_N_THRESHOLD);
+    private static final long COUNTING_RANGE_FACTOR = 16;
+    
+    /** 
+     * Largest number that can be sieved. Base primes up to its square root
+     * must fit in an int, and the buckets of the large ones in memory.
+     */
+    public static final long MAX_N = 10000000000000L;   // 10^13
+    
+    // Mod 30 wheel: only numbers coprime with 2, 3 and 5 are represented,
+    // that is 8 residues every 30 numbers, one per bit of a byte. Bit k of a
+    // segment starting at base (multiple of 30) maps to the number:
+    //     base + 30 * (k / 8) + WHEEL[k % 8]
+    static final int[] WHEEL = { 1, 7, 11, 13, 17, 19, 23, 29 };
+    private static final int[] WHEEL_PRIMES = { 2, 3, 5 };
+    
+    // WHEEL_BIT[r]: bit of residue r, or -1 if r is not coprime with 30
+    private static final int[] WHEEL_BIT = new int[30];
+    
+    // WHEEL_CEIL[r]: bit of the first residue >= r
+    private static final int[] WHEEL_CEIL = new int[30];
+    
+    // Multiples of the first primes past the wheel, 7, 11 and 13, repeat
+    // every 7 * 11 * 13 = 1001 bytes. Segments start with a copy of this
+    // pattern instead of crossing them off. Word j packs the bytes
+    // 8j..8j+7 (mod 1001): as the period is odd, the pattern can start at
+    // any 4 bytes, so segments must start at multiples of 120.
+    private static final int PRESIEVE_PERIOD = 7 * 11 * 13;
+    private static final long[] PRESIEVE_PATTERN = new long[PRESIEVE_PERIOD];
+    
+    // Multiples of the next primes, taken in pairs, repeat every p * q bytes,
+    // hence every p * q words. They're stamped on segments a word at a time,
+    // ORing 64 bits at once: below about 64 multiples per word that's less
+    // work than crossing them off a bit at a time. STAMP_PATTERNS[s][j] 
+    // packs the bytes 8j..8j+7 (mod p * q), STAMP_INVERSES[s] is 1/8 
+    // (mod p * q)
+    private static final int[][] STAMPED_PRIMES = { { 17, 19 }, { 23, 29 }, 
+        { 31, 37 }, { 41, 43 }, { 47, 53 }, { 59, 61 } };
+    private static final long[][] STAMP_PATTERNS = 
+        new long[STAMPED_PRIMES.length][];
+    private static final int[] STAMP_INVERSES = new int[STAMPED_PRIMES.length];
+    private static final int FIRST_SIEVING_PRIME = 67;
+    
+    static {
+        for (int r = 0; r < 30; r++) {
+            WHEEL_BIT[r] = -1;
+        }
+        for (int w = 0; w < 8; w++) {
+            WHEEL_BIT[WHEEL[w]] = w;
+        }
+        for (int r = 0, w = 0; r < 30; r++) {
+            if (r > WHEEL[w]) w++;
+            WHEEL_CEIL[r] = w;
+        }
+        
+        byte[] pattern = new byte[PRESIEVE_PERIOD];
+        for (int q = 0; q < PRESIEVE_PERIOD; q++) {
+            for (int w = 0; w < 8; w++) {
+                long i = 30L * q + WHEEL[w];
+                if (i % 7 == 0 || i % 11 == 0 || i % 13 == 0) {
+                    pattern[q] |= 1 << w;
+                }
+            }
+        }
+        for (int j = 0; j < PRESIEVE_PERIOD; j++) {
+            long word = 0;
+            for (int t = 0; t < 8; t++) {
+                int q = (8 * j + t) % PRESIEVE_PERIOD;
+                word |= (pattern[q] & 0xFFL) << (t << 3);
+            }
+            PRESIEVE_PATTERN[j] = word;
+        }
+        
+        for (int s = 0; s < STAMPED_PRIMES.length; s++) {
+            int p = STAMPED_PRIMES[s][0];
+            int q = STAMPED_PRIMES[s][1];
+            int period = p * q;
+            long[] words = new long[period];
+            for (int k = 0; k < 8 * period; k++) {
+                for (int w = 0; w < 8; w++) {
+                    long i = 30L * k + WHEEL[w];
+                    if (i % p == 0 || i % q == 0) {
+                        words[k >> 3] |= 1L << (((k & 7) << 3) | w);
+                    }
+                }
+            }
+            STAMP_PATTERNS[s] = words;
+            int inv = 1;
+            while ((8 * inv) % period != 1) inv++;
+            STAMP_INVERSES[s] = inv;
+        }
+    }
     
     public static long sieve(long n, final boolean output) {
-        checkCondArg(0L <= n && n < 4294967295L, "n must be in [0, 2^32-2]");
+        return sieve(n, output ? System.out : null);
+    }
+    
+    /**
+     * Counts the primes in <code>[0..n-1]</code>, printing them comma
+     * separated on <code>out</code>, unless it's null. See 
+     * {@link #sieve(long, long, PrintStream)}.
+     */
+    public static long sieve(long n, PrintStream out) {
+        checkCondArg(0L <= n && n <= MAX_N, "n must be in [0, 10^13]");
+        return sieve(0, n - 1, out);
+    }
+    
+    /**
+     * Same as {@link #sieve(long, PrintStream)} called on every n in turn,
+     * returning their counts, but on <code>out</code> the primes are sieved
+     * once, up to the largest n: the text of smaller n's is a prefix of it.
+     * Text that later n's print again is kept in a temporary file meanwhile.
+     */
+    public static long[] sieve(long[] ns, PrintStream out) {
+        checkNonNullArg(ns, "ns must not be null");
+        for (long n : ns) {
+            checkCondArg(0L <= n && n <= MAX_N, "n must be in [0, 10^13]");
+        }
+        if (out == null) {
+            long[] counts = new long[ns.length];
+            for (int i = 0; i < ns.length; i++) {
+                counts[i] = sieve(ns[i], null);
+            }
+            return counts;
+        }
+        try {
+            return new QueryBatch(ns, out).run();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Counts the primes in <code>[lo..hi]</code>, printing them comma
+     * separated on <code>out</code>, unless it's null. Apart from the base
+     * primes up to sqrt(hi), nothing below lo is sieved. The workers format
+     * the primes of their block into byte buffers, which are written to
+     * <code>out</code> in block order, one write per block. Nothing is
+     * printed if there are no primes, not even the newline.
+     */
+    public static long sieve(long lo, long hi, PrintStream out) {
+        checkCondArg(0L <= lo && hi <= MAX_N, "[lo, hi] must be in [0, 10^13]");
+        boolean output = out != null;
         
         // No primes in [0..1]
-        if (n <= 2) return 0;
+        if (lo > hi || hi < 2) return 0;
         
-        // Only 2 in [0..2]
-        if (n == 3) {
-            if (output) System.out.println("2");
-            return 1;
+        // Counting only, on a range wide enough: prime counting is faster
+        if (!output && countingFaster(lo, hi)) {
+            return PrimeCounter.pi(hi) - (lo > 0 ? PrimeCounter.pi(lo - 1) : 0);
         }
-        // Post condition: n > 3
         
-        // We must sieve the numbers in [1..n-1]:  if n is odd, then n-1 is even
-        // and therefore not prime. In this case we can restrict ourselves to
-        // [1..n-2]. We set n to the last number we could sieve (inclusive)
-        n = (n - 1) - (n & 1);
-        // Post condition: n > 2, odd, and "inclusive"
+        BlockSink sink = output ? new PrintSink(out, true) : null;
+        long count = sieveRange(lo, hi, sink);
         
+        // Print last newline
+        if (output) {
+            if (count > 0) out.write(NEWLINE);
+            out.flush();
+        }
+        return count;
+    }
+    
+    /**
+     * Counts the primes in <code>[lo..hi]</code>, writing them to
+     * <code>out</code> in a binary format, {@link PrimeFormat#GAPS} or
+     * {@link PrimeFormat#BITMAP}, deflated a block at a time and indexed if
+     * <code>compressed</code>. See {@link PrimeReader} for the layout.
+     */
+    public static long sieve(long lo, long hi, OutputStream out, int encoding,
+            boolean compressed) throws IOException {
+        checkCondArg(0L <= lo && hi <= MAX_N, "[lo, hi] must be in [0, 10^13]");
+        checkNonNullArg(out, "out must not be null");
+        checkCondArg(PrimeFormat.isBinary(encoding),
+            "Unknown encoding " + encoding);
+        return new PrimeWriter(out, encoding, compressed).run(lo, hi);
+    }
+    
+    /**
+     * Returns an iterator over the primes in <code>[0..n-1]</code>, that is
+     * the same primes {@link #sieve(long, boolean)} would print. Segments are
+     * sieved lazily, one at a time, on the calling thread.
+     */
+    public static PrimeIterator iterator(long n) {
+        checkCondArg(0L <= n && n <= MAX_N, "n must be in [0, 10^13]");
+        return new PrimeIterator(0, n - 1);
+    }
+    
+    /** Same as {@link #iterator(long)}, on the primes in <code>[lo..hi]</code> */
+    public static PrimeIterator iterator(long lo, long hi) {
+        checkCondArg(0L <= lo && hi <= MAX_N, "[lo, hi] must be in [0, 10^13]");
+        return new PrimeIterator(lo, hi);
+    }
+    
+    /**
+     * Counts the primes in <code>[lo..hi]</code>, with <code>2 <= hi</code>,
+     * handing them to <code>sink</code> as text unless it's null, in order.
+     * It's the sieve behind {@link #sieve(long, long, PrintStream)}.
+     */
+    static long sieveRange(long lo, long hi, BlockSink sink) {
+        return sieveRange(lo, hi, sink, PrimeFormat.TEXT);
+    }
+    
+    /**
+     * Same as {@link #sieveRange(long, long, BlockSink)}, with the primes in
+     * <code>encoding</code>: one of {@link PrimeFormat}.
+     */
+    static long sieveRange(long lo, long hi, BlockSink sink, int encoding) {
         // Now we calculate the limit of the first pass of the sieve: on small
-        // n's we set limit = n, otherwise we apply a parallelized segmented
-        // multistep algorithm with limit = sqrt(n);
-        boolean largeN = n >= LARGE_N_THRESHOLD;
-        long limit = largeN ? (long) Math.sqrt(n) : n;
+        // hi's we set limit = hi, otherwise we apply a parallelized segmented
+        // multistep algorithm with limit = sqrt(hi);
+        boolean largeN = hi >= sLargeNThreshold;
+        long limit = largeN ? isqrt(hi) : hi;
 
-        ArrayList<Long> primes = sieveInitial(limit);       
-        long count = primes.size();
+        int[] primes = sieveInitial(limit);       
+        int from = lowerBound(primes, lo);
+        long count = primes.length - from;
         
-        // Output the initial segment, if need be
-        if (output) {
-            System.out.print(2);
-            for (int i = 0; i < count; i++) {
-                System.out.print(SEPARATOR + primes.get(i));
-            }
+        // Hand over the initial primes from lo, if need be
+        if (sink != null && count > 0) {
+            ByteBuilder buf = new ByteBuilder(BUFFER_SIZE);
+            long end = hi < limit ? hi : limit;
+            encodeInitial(primes, from, lo, end, encoding, buf);
+            sink.write(lo, end, buf, count);
         }
         
         // For large n's we are not yet done: we need to sieve all the remaining
         // segments
         if (largeN) {
-            long next = limit + 1;
-            next = (next & 1) == 0 ? next + 1 : next;
-            count += sieveParallel(primes, next, n, output);
+            long next = lo > limit ? lo : limit + 1;
+            count += sink != null
+                ? sieveParallel(primes, next, hi, sink, encoding)
+                : sieveParallel(primes, next, hi, null, false);
         }
-        
-        // Print last newline
-        if (output) System.out.println();
-        
-        // Add 1 because 2 is prime
-        return count + 1;
+        return count;
     }
     
-    /** Produces a list of primes up to <code>limit</code> (inclusive). */
-    private static ArrayList<Long> sieveInitial(long limit) {
-        // Pre condition: limit <= 2^32 - 2
-        int size = (int)((limit + 1) >> 1);
-        
-        // Map:   number --> index
-        //          i    --> (i - 1) / 2
-        //       2i + 1  <--    i       
-        BitArray arr = new BitArray(size);
+    /** 
+     * Whether {@link PrimeCounter} counts the primes in <code>[lo..hi]</code>
+     * faster than the sieve: it takes about O(hi^(2/3)), against O(hi - lo).
+     */
+    private static boolean countingFaster(long lo, long hi) {
+        if (hi < sLargeNThreshold) return false;
+        long y = PrimeCounter.icbrt(hi);
+        return hi - lo > COUNTING_RANGE_FACTOR * y * y;
+    }
+    
+    /** Smallest hi sieved by segments rather than in a single pass */
+    static long largeNThreshold() {
+        return sLargeNThreshold;
+    }
+    
+    /** For the trials of PrimeListTuner and the benchmarks only */
+    static void setLargeNThreshold(long threshold) {
+        checkCondArg(threshold >= MIN_LARGE_N_THRESHOLD 
+            && threshold <= MAX_LARGE_N_THRESHOLD, 
+            "threshold must be in [25..2^31)");
+        sLargeNThreshold = threshold;
+    }
+    
+    /** Index of the first prime >= <code>i</code>, or the length if none */
+    static int lowerBound(int[] primes, long i) {
+        if (primes.length == 0 || i > primes[primes.length - 1]) {
+            return primes.length;
+        }
+        int k = Arrays.binarySearch(primes, (int) Math.max(i, 0));
+        return k >= 0 ? k : -(k + 1);
+    }
+    
+    /**
+     * Bytes of bits sieved at once: they should fit in the L2 cache. It can be
+     * set with the system property <code>primelist.segmentBytes</code>, or
+     * tuned in the profile, otherwise the cache size is read from sysfs on
+     * Linux. It's rounded to a power of two
+     * between 4 kb and {@link #BLOCK_BYTES}, so that blocks split evenly and
+     * segments start at multiples of 120.
+     */
+    private static int segmentBytes() {
+        int cache = cacheSize(2);
+        int def = cache <= 0 ? DEFAULT_SEGMENT_BYTES 
+            : cache < MIN_SEGMENT_BYTES ? MIN_SEGMENT_BYTES
+            : cache < BLOCK_BYTES ? cache : BLOCK_BYTES;
+        int bytes = (int) PrimeListTuner.setting(PROFILE, 
+            PrimeListTuner.SEGMENT_BYTES, def, MIN_SEGMENT_BYTES, BLOCK_BYTES);
+        return Integer.highestOneBit(bytes);
+    }
+    
+    /** Size of the cache at <code>level</code> of cpu0, or -1 if unknown */
+    private static int cacheSize(int level) {
+        String dir = "/sys/devices/system/cpu/cpu0/cache/index";
+        try {
+            for (int i = 0; new File(dir + i).isDirectory(); i++) {
+                if (Integer.parseInt(readLine(dir + i + "/level")) != level) {
+                    continue;
+                }
+                // Formatted like 512K or 2M
+                String size = readLine(dir + i + "/size");
+                char unit = size.charAt(size.length() - 1);
+                int shift = unit == 'K' ? 10 : unit == 'M' ? 20 : 0;
+                if (shift > 0) size = size.substring(0, size.length() - 1);
+                return Integer.parseInt(size) << shift;
+            }
+        } catch (Exception ignored) {
+            // Not on Linux, or formatted differently: fall back to defaults
+        }
+        return -1;
+    }
+    
+    /**
+     * Cpus this process can use: within a container they're limited by the
+     * cpu quota of its cgroup, which availableProcessors() doesn't see on
+     * older JVMs.
+     */
+    static int availableCpus() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        long quota = -1;
+        long period = -1;
+        try {
+            File v2 = new File("/sys/fs/cgroup/cpu.max");
+            if (v2.isFile()) {
+                // Formatted like "max 100000" or "200000 100000"
+                String[] fields = readLine(v2.getPath()).split(" ");
+                if (!fields[0].equals("max")) {
+                    quota = Long.parseLong(fields[0]);
+                    period = Long.parseLong(fields[1]);
+                }
+            } else {
+                String v1 = "/sys/fs/cgroup/cpu/cpu.cfs_";
+                if (new File(v1 + "quota_us").isFile()) {
+                    quota = Long.parseLong(readLine(v1 + "quota_us"));
+                    period = Long.parseLong(readLine(v1 + "period_us"));
+                }
+            }
+        } catch (Exception ignored) {
+            // Not on Linux, or formatted differently: no quota
+        }
+        if (quota > 0 && period > 0) {
+            int limit = (int) Math.max(1, (quota + period - 1) / period);
+            cpus = cpus < limit ? cpus : limit;
+        }
+        return cpus;
+    }
+    
+    private static String readLine(String pathname) throws IOException {
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(pathname));
+            return br.readLine().trim();
+        } finally {
+            closeQuietly(br);
+        }
+    }
+    
+    /** Floor of the square root of <code>n >= 0</code> */
+    static long isqrt(long n) {
+        long r = (long) Math.sqrt(n);
+        // Fix rounding errors of the floating point root
+        while (r * r > n) r--;
+        while ((r + 1) * (r + 1) <= n) r++;
+        return r;
+    }
+    
+    /** 
+     * Produces the primes up to <code>limit</code> (inclusive). They fit
+     * in an int as limit is at most sqrt(n) for large n's.
+     */
+    static int[] sieveInitial(long limit) {
+        // Pre condition: limit < sLargeNThreshold or limit <= sqrt(MAX_N)
+        long startNanos = SieveMetrics.ENABLED ? System.nanoTime() : 0;
+        int nbytes = (int) (limit / 30) + 1;
+        BitArray arr = new BitArray(nbytes << 3);
+        presieve(arr, 0);
 
-        // Sieve
-        for (long i = 3L; i * i <= limit; i += 2L) {
+        // Sieve: primes are found in increasing order, so a bit is final
+        // when we get to it
+        for (int k = wheelIndex(0, FIRST_SIEVING_PRIME); ; k++) {
+            long p = wheelNumber(0, k);
+            if (p * p > limit) break;
             // Skip composite numbers
-            if (arr.get((int) ((i - 1) >> 1)) == 1) {
-                continue;
+            if (arr.get(k) == 1) continue;
+            for (int j = 0; j < 8; j++) {
+                crossOff(arr, nbytes, (int) p, j, firstMultiple(p, j, 0));
             }
-            for (long j = i * i; j <= limit; j += i) {  
-                // Skip even numbers
-                if ((j & 1) == 0) continue;
-                arr.set((int) ((j - 1) >> 1));
-            }                       
         }
         
-        // Gather primes
-        ArrayList<Long> primes = new ArrayList<Long>();
-        for (long i = 3; i <= limit; i += 2) {
-            if (arr.get((int) ((i - 1) >> 1)) == 0) {
-                primes.add(i);
-            }
+        // Gather primes: count first, then fill an exactly sized table
+        int kEnd = wheelIndex(0, limit + 1);
+        int len = kEnd - arr.count(0, kEnd);
+        for (int p : WHEEL_PRIMES) {
+            if (p <= limit) len++;
+        }
+        int[] primes = new int[len];
+        int i = 0;
+        for (int p : WHEEL_PRIMES) {
+            if (p <= limit) primes[i++] = p;
+        }
+        for (int k = arr.nextClearBit(0, kEnd); k < kEnd; 
+                k = arr.nextClearBit(k + 1, kEnd)) {
+            primes[i++] = (int) wheelNumber(0, k);
+        }
+        if (SieveMetrics.ENABLED) {
+            SieveMetrics.INSTANCE.initialSieved(startNanos);
         }
         return primes;
     }
     
     /** 
      * Counts primes between <code>lo</code> and <code>hi</code> (inclusive),
-     * eventually printing them.
+     * eventually printing them on <code>out</code>, without the leading
+     * separator if <code>first</code>.
      */
-    private static long sieveParallel(ArrayList<Long> primes, 
-            long lo, long hi, boolean output) {
-        // Pre condition: lo, hi are odd
-        long n = hi;
-        long count = 0;
-    
-        ManagedThreadPool<SieveSegmentTask, SieveSegmentTask.Result> pool 
-            = new ManagedThreadPool<SieveSegmentTask, 
-                SieveSegmentTask.Result>(POOL_SIZE, MAX_TASKS_IN_MEMORY);
-        
-        // Enqueue all tasks
-        // Pre condition: lo is odd
-        while (lo <= n) {
-            hi = lo + SEGMENT_SIZE - 1;
-            hi = (hi & 1) == 0 ? hi + 1 : lo;
-            hi = hi <= n ? hi : n;   // hi = min(hi, n)
-            // Post condition: lo, hi are odd
-        
-            // Pre condition: hi - lo + 1 (odd)             
-            pool.submit(new SieveSegmentTask(primes, lo, hi));
-            lo = hi + 2;
-            // Post condition: lo is odd
-        }
-    
-        // Fetch results
-        SieveSegmentTask.Result res = null;
-        while ((res = pool.take()) != null) {
-            BitArray arr = res.array;
-            lo = res.low;
-            hi = res.high;
-        
-            // Shouldn't be necessary but it doesn't hurt either
-            res.free();
-        
-            for (long i = lo; i <= hi; i += 2) {
-                // Map:  number --> index
-                //         i    --> (i - lo) / 2
-                if (arr.get((int) ((i - lo) >> 1)) == 0) {
-                    count++;
-                    if (output) System.out.print(SEPARATOR + i);    
+    static long sieveParallel(int[] primes, 
+            long lo, long hi, PrintStream out, boolean first) {
+        // Counting only: workers split the blocks among themselves and the
+        // counts are summed up on the way back
+        if (out == null) {
+            long startNanos = SieveMetrics.ENABLED 
+                ? SieveMetrics.INSTANCE.runStarted() : 0;
+            long start = blockStart(lo);
+            int nblocks = (int) ((hi - start) / BLOCK_SPAN) + 1;
+            try {
+                return POOL.invoke(
+                    new CountBlocksTask(primes, start, lo, hi, 0, nblocks));
+            } finally {
+                if (SieveMetrics.ENABLED) {
+                    SieveMetrics.INSTANCE.runEnded(startNanos);
                 }
             }
         }
+        return sieveParallel(primes, lo, hi, new PrintSink(out, first));
+    }
+    
+    /** 
+     * Counts primes between <code>lo</code> and <code>hi</code> (inclusive),
+     * handing their text to <code>sink</code>, a block at a time.
+     */
+    static long sieveParallel(int[] primes, long lo, long hi, BlockSink sink) {
+        return sieveParallel(primes, lo, hi, sink, PrimeFormat.TEXT);
+    }
+    
+    /** Same as above, with the primes in <code>encoding</code> */
+    static long sieveParallel(int[] primes, long lo, long hi, BlockSink sink,
+            int encoding) {
+        long runNanos = SieveMetrics.ENABLED 
+            ? SieveMetrics.INSTANCE.runStarted() : 0;
+        // Blocks start right below lo, only the part of the first one in 
+        // [lo..hi] is taken into account
+        long start = blockStart(lo);
+        int nblocks = (int) ((hi - start) / BLOCK_SPAN) + 1;
+        
+        // Blocks finish in any order, but are handed out in order. At most
+        // MAX_TASKS_IN_MEMORY are either running or waiting for the sink
+        long count = 0;
+        ReorderBuffer<BlockResult> results = 
+            new ReorderBuffer<BlockResult>(MAX_TASKS_IN_MEMORY);
+        ArrayDeque<ByteBuilder> bufs = new ArrayDeque<ByteBuilder>();
+        try {
+            int submitted = 0;
+            for (int seq = 0; seq < nblocks; seq++) {
+                while (submitted < nblocks 
+                        && submitted - seq < MAX_TASKS_IN_MEMORY) {
+                    long base = start + submitted * BLOCK_SPAN;
+                    ByteBuilder buf = bufs.poll();
+                    if (buf == null) {
+                        buf = BUFFERS.poll();
+                    }
+                    if (buf == null) {
+                        buf = new ByteBuilder(BUFFER_SIZE);
+                    }
+                    POOL.execute(new PrintBlockTask(primes, base, lo, hi, buf, 
+                        encoding, results, submitted));
+                    submitted++;
+                }
         
-        pool.shutdown();
+                long takeNanos = SieveMetrics.ENABLED ? System.nanoTime() : 0;
+                BlockResult res = results.take(seq);
+                if (SieveMetrics.ENABLED) {
+                    SieveMetrics.INSTANCE.blockTaken(takeNanos,
+                        submitted - seq);
+                }
+                count += res.count;
+                long base = start + seq * BLOCK_SPAN;
+                long end = base + BLOCK_SPAN - 1;
+                long writeNanos = SieveMetrics.ENABLED ? System.nanoTime() : 0;
+                sink.write(base > lo ? base : lo, end < hi ? end : hi, 
+                    res.bytes, res.count);
+                if (SieveMetrics.ENABLED) {
+                    SieveMetrics.INSTANCE.written(writeNanos, res.bytes.size());
+                }
+                bufs.push(res.bytes);
+            }
+            // Back to the pool, unless they're large or it's full of other
+            // calls' buffers
+            for (ByteBuilder buf : bufs) {
+                if (buf.capacity() <= MAX_POOLED_BYTES) BUFFERS.offer(buf);
+            }
+        } finally {
+            if (SieveMetrics.ENABLED) {
+                SieveMetrics.INSTANCE.runEnded(runNanos);
+            }
+        }
         return count;
     }
     
     /** 
-     * Sieves a segment between <code>lo</code> and <code>hi</code> (inclusive),
-     * using initial primes <code>primes</code> and returning a 
-     * {@link BitArray} representing the the new primes in the segment.
+     * Sieves the block starting at <code>base</code>, on the sieve of the
+     * current thread, and counts the primes found in <code>[lo..hi]</code>,
+     * formatting them into <code>buf</code> if it's not null.
      */
-    private static BitArray sieveSegment(ArrayList<Long> primes, 
-            long lo, long hi) {
-        // Pre condition: lo, hi are odd
-        BitArray seg = new BitArray((int) (hi - lo + 1));  
-        int len = primes.size();
-        
-        for (int i = 0; i < len; i++) {
-            // Pre condition: p is odd (prime)
-            long p = primes.get(i);
-            long r = lo % p;
-            long first = (r == 0) ? lo : lo - r + p;
-            first = (first & 1) == 0 ? first + p : first;
-            // Post condition: first is odd
-            
-            for (long j = first; j <= hi; j += p) {
-                if ((j & 1) == 0) {
-                     continue;
-                }
-                seg.set((int) ((j - lo) >> 1));
-            }               
+    static long sieveBlock(int[] primes, long base, long lo, long hi, 
+            ByteBuilder buf) {
+        return sieveBlock(primes, base, lo, hi, buf, PrimeFormat.TEXT);
+    }
+    
+    /** Same as above, with the primes in <code>encoding</code> */
+    static long sieveBlock(int[] primes, long base, long lo, long hi,
+            ByteBuilder buf, int encoding) {
+        long startNanos = 0;
+        long startAllocated = 0;
+        if (SieveMetrics.ENABLED) {
+            startNanos = System.nanoTime();
+            startAllocated = SieveMetrics.allocatedBytes();
         }
-        return seg;
+        SegmentSieve sieve = segmentSieve(primes);
+        long count = 0;
+        int segments = 0;
+        long prev = -1;     // last prime, for the gaps
+        long first = base > lo ? base : lo;
+        sieve.startBlock(base, blockBytes(base, hi));
+        while (sieve.nextSegment()) {
+            segments++;
+            long segBase = sieve.mBase;
+            long end = segBase + 30L * sieve.mBytes;
+            if (lo >= end) continue;
+            int kLo = lo > segBase ? wheelIndex(segBase, lo) : 0;
+            int kHi = wheelIndex(segBase, hi < end ? hi + 1 : end);
+            if (buf != null && encoding == PrimeFormat.TEXT) {
+                count += countSegment(sieve.mBits, segBase, kLo, kHi, buf);
+                continue;
+            }
+            // Primes are the bits not set: count a word at a time
+            count += (kHi - kLo) - sieve.mBits.count(kLo, kHi);
+            if (buf == null) continue;
+            if (encoding == PrimeFormat.GAPS) {
+                prev = gapSegment(sieve.mBits, segBase, kLo, kHi, first, prev,
+                    buf);
+            } else {
+                bitmapSegment(sieve.mBits, kLo, kHi, buf);
+            }
+        }
+        if (SieveMetrics.ENABLED) {
+            SieveMetrics.INSTANCE.blockSieved(startNanos, startAllocated, 
+                segments);
+        }
+        return count;
+    }
+    
+    /** The sieve of the current thread, set to <code>primes</code> */
+    static SegmentSieve segmentSieve(int[] primes) {
+        // Threads own their sieve, with its cache-sized segment, offsets
+        // and buckets, and keep it across calls: nothing is allocated per
+        // block. Offsets are also reused when a thread happens to pick up
+        // the block following its previous one
+        SegmentSieve sieve = SIEVES.get();
+        if (sieve == null) {
+            sieve = new SegmentSieve(primes);
+            SIEVES.set(sieve);
+        } else if (sieve.mPrimes != primes) {
+            sieve.reset(primes);
+        }
+        return sieve;
+    }
+    
+    /** 
+     * Start of the first block to sieve from <code>i</code>: it must be a
+     * multiple of 120, see {@link #presieve(BitArray, long)}.
+     */
+    static long blockStart(long i) {
+        return i - i % 120;
+    }
+    
+    /** 
+     * Number of bytes of the block starting at <code>base</code>, so that
+     * it doesn't go (much) past <code>hi</code>.
+     */
+    static int blockBytes(long base, long hi) {
+        long nbytes = (hi - base) / 30 + 1;
+        return nbytes < BLOCK_BYTES ? (int) nbytes : BLOCK_BYTES;
     }
     
     /** 
-     * Quick implementation of a thread pool. Use it this way:
-     * 1. enqueue all the tasks first from a single thread
-     * 2. poll all the results from the same thread: it will block
-     *    if not available
-     * 3. the tasks will run on a thread pool but only mMaxTaskInMem
-     *    will be held in memory. It we submit too many tasks, the 
-     *    execution will wait until we retrieve enough results by take().
+     * Counts the primes mapped by bits <code>[kLo, kHi)</code> of a segment 
+     * at <code>base</code>, formatting them into <code>text</code> if it's
+     * not null.
+     */
+    static long countSegment(BitArray bits, long base, int kLo, int kHi, 
+            ByteBuilder text) {
+        long count = 0;
+        for (int k = bits.nextClearBit(kLo, kHi); k < kHi; 
+                k = bits.nextClearBit(k + 1, kHi)) {
+            count++;
+            if (text != null) {
+                text.append(SEPARATOR).append(wheelNumber(base, k));
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Appends the gaps between the primes mapped by bits
+     * <code>[kLo, kHi)</code> of a segment at <code>base</code>, following
+     * <code>prev</code>, or the first from <code>lo</code> if it's -1, and
+     * returns the last prime. See {@link PrimeFormat#GAPS}.
      */
-    static class ManagedThreadPool<T extends Callable<R>, R> {
-        private final ExecutorService mPool;
-        private final int mMaxTasksInMem;
-        private final ArrayDeque<T> mQueuingTasks = new ArrayDeque<T>();
-        private final ArrayDeque<Future<R>> mPendingResults =
-             new ArrayDeque<Future<R>>();
+    static long gapSegment(BitArray bits, long base, int kLo, int kHi,
+            long lo, long prev, ByteBuilder buf) {
+        for (int k = bits.nextClearBit(kLo, kHi); k < kHi;
+                k = bits.nextClearBit(k + 1, kHi)) {
+            long p = wheelNumber(base, k);
+            buf.appendVarint(prev < 0 ? p - lo : (p - prev) >> 1);
+            prev = p;
+        }
+        return prev;
+    }
+    
+    /**
+     * Appends the bytes of bits <code>[kLo, kHi)</code> of a segment,
+     * inverted so that primes are set, and cleared outside of the range.
+     * See {@link PrimeFormat#BITMAP}.
+     */
+    static void bitmapSegment(BitArray bits, int kLo, int kHi,
+            ByteBuilder buf) {
+        if (kLo >= kHi) return;
+        int last = (kHi - 1) >> 3;
+        for (int i = kLo >> 3; i <= last; i++) {
+            int b = ~(int) (bits.word(i >> 3) >>> ((i & 7) << 3)) & 0xFF;
+            if (i == kLo >> 3) b &= 0xFF << (kLo & 7);
+            if (i == last) b &= 0xFF >>> (7 - ((kHi - 1) & 7));
+            buf.append((byte) b);
+        }
+    }
+    
+    /**
+     * Formats <code>primes</code> from index <code>from</code>, all in
+     * <code>[lo..hi]</code>, into <code>buf</code> in <code>encoding</code>.
+     */
+    static void encodeInitial(int[] primes, int from, long lo, long hi,
+            int encoding, ByteBuilder buf) {
+        if (encoding == PrimeFormat.TEXT) {
+            for (int i = from; i < primes.length; i++) {
+                buf.append(SEPARATOR).append(primes[i]);
+            }
+        } else if (encoding == PrimeFormat.GAPS) {
+            long prev = -1;
+            for (int i = from; i < primes.length; i++) {
+                long p = primes[i];
+                buf.appendVarint(prev < 0 ? p - lo : (p - prev) >> 1);
+                prev = p;
+            }
+        } else {
+            // From lo rounded down to a multiple of 30 up to hi: 2, 3 and 5
+            // are not in the wheel, readers add them back
+            long base = lo - lo % 30;
+            int start = buf.size();
+            int nbytes = (int) ((hi - base) / 30 + 1);
+            for (int i = 0; i < nbytes; i++) {
+                buf.append((byte) 0);
+            }
+            byte[] bytes = buf.array();
+            for (int i = from; i < primes.length; i++) {
+                if (primes[i] < 7) continue;
+                long d = primes[i] - base;
+                bytes[start + (int) (d / 30)] |= 1 << WHEEL_BIT[(int) (d % 30)];
+            }
+        }
+    }
+    
+    /** Number mapped by bit <code>k</code> of a segment at <code>base</code> */
+    static long wheelNumber(long base, int k) {
+        return base + 30L * (k >> 3) + WHEEL[k & 7];
+    }
+    
+    /** 
+     * Index of the first bit mapping a number >= <code>i</code>, in a 
+     * segment at <code>base</code>. Pre condition: <code>i >= base</code>.
+     */
+    static int wheelIndex(long base, long i) {
+        long d = i - base;
+        return (int) ((d / 30) << 3) + WHEEL_CEIL[(int) (d % 30)];
+    }
+    
+    /** 
+     * Sieves the blocks of numbers handed out to workers, one cache-sized 
+     * segment at a time, always reusing the same {@link BitArray}: after
+     * {@link #nextSegment()}, the primes of the segment starting at
+     * <code>mBase</code>, of <code>mBytes</code> bytes, are the bits of
+     * <code>mBits</code> not set. The bits of the initial primes, if any, are
+     * not reliable. Not thread-safe: each thread sieving holds its own.
+     * 
+     * Each prime p >= 67, past the stamped ones, crosses off its multiples
+     * p * k with k coprime with 30, in 8 streams, one per residue of k
+     * modulo 30: in each stream the multiples are 30 * p apart, that is p
+     * bytes, and always map to the same bit. Primes are then split in two:
+     * 1. small ones, smaller than a segment in bytes, hit each segment many
+     *    times: the next multiple of each stream is cached across segments,
+     *    and across blocks when they are consecutive, to skip divisions
+     * 2. large ones hit a segment at most once per stream: they are put in
+     *    buckets, one per segment of the block, holding the streams with a
+     *    multiple there (bucket sieve by Oliveira e Silva). A large prime
+     *    costs nothing in the segments it misses.
+     */
+    static class SegmentSieve {
+        int[] mPrimes;
+        final BitArray mBits = new BitArray(SEGMENT_BYTES << 3);
+        private int mFirstSmall;  // first prime crossed off, i.e. >= 67
+        private int mFirstLarge;  // first prime >= SEGMENT_BYTES
         
-        public ManagedThreadPool(int nThread, int maxTasksInMemory){
-            mPool = Executors.newFixedThreadPool(nThread);
-            mMaxTasksInMem = maxTasksInMemory;
+        // Small primes: next multiple of each stream, relative to mNextBase.
+        // Valid only for the first mValid primes
+        private int[] mOffsets = new int[0];
+        private long mNextBase = -1;
+        private int mValid;
+        
+        // Large primes: linked lists of streams, one per segment. For each
+        // stream there's the byte of its next multiple, relative to the
+        // block, and the prime index together with the bit: (i << 3) | bit
+        private int[] mHeads = new int[0];
+        private int[] mLinks = new int[0];
+        private int[] mPositions = new int[0];
+        private int[] mStreams = new int[0];
+        private int mFree;      // first unused or freed entry
+        private int mUsed;      // entries used at least once in the block
+        
+        // Current block and segment
+        private long mBlockBase;
+        private int mBlockBytes;
+        private int mSegment;
+        long mBase;
+        int mBytes;
+        
+        SegmentSieve(int[] primes) {
+            reset(primes);
         }
         
-        public synchronized void submit(T task) {
-            mQueuingTasks.offer(task);
-            submitNext();
+        /** 
+         * Switches to the base primes <code>primes</code>, keeping the 
+         * segment and the other buffers: they're only grown if need be.
+         */
+        void reset(int[] primes) {
+            mPrimes = primes;
+            int len = primes.length;
+            int i = 0;
+            while (i < len && primes[i] < FIRST_SIEVING_PRIME) i++;
+            mFirstSmall = i;
+            while (i < len && primes[i] < SEGMENT_BYTES) i++;
+            mFirstLarge = i;
+            if (mOffsets.length < mFirstLarge << 3) {
+                mOffsets = new int[mFirstLarge << 3];
+            }
+            mNextBase = -1;
         }
         
-        private synchronized void submitNext() {
-            if (mPool.isShutdown() || mQueuingTasks.isEmpty()) return;
-            if (mPendingResults.size() >= mMaxTasksInMem) return;
-
-            final T task = mQueuingTasks.poll();
-            Future<R> future = mPool.submit(
-                new Callable<R>() {
-                    @Override
-                    public R call() {
-                        R res = null;
-                        try {
-                            res = task.call();
-                            submitNext();
-                        } catch(Exception e) {
-                            // Not the best policy; only for this exercise
-                            System.err.println(
-                                "Exception in call()... shutting down");
-                            e.printStackTrace();
-                            shutdown();
-                        }
-                        return res;
+        /** 
+         * Starts the block at <code>base</code>, of <code>nbytes</code>
+         * bytes, putting the large primes in the buckets.
+         */
+        void startBlock(long base, int nbytes) {
+            // Pre condition: base is a multiple of 120
+            mBlockBase = base;
+            mBlockBytes = nbytes;
+            mSegment = 0;
+            
+            int nsegs = (nbytes + SEGMENT_BYTES - 1) / SEGMENT_BYTES;
+            if (mHeads.length < nsegs) mHeads = new int[nsegs];
+            for (int s = 0; s < nsegs; s++) mHeads[s] = -1;
+            mFree = -1;
+            mUsed = 0;
+            
+            long end = base + 30L * nbytes;
+            int len = mPrimes.length;
+            for (int i = mFirstLarge; i < len; i++) {
+                int p = mPrimes[i];
+                // Crossing off starts from p^2: done if it's past the block
+                if ((long) p * p >= end) break;
+                
+                for (int j = 0; j < 8; j++) {
+                    int q = firstMultiple(p, j, base);
+                    if (q < nbytes) {
+                        addToBucket(q, (i << 3) | streamBit(p, j));
                     }
-            });
-            mPendingResults.offer(future);
+                }
+            }
+        }
+        
+        /** Sieves the next segment of the block, if there's any left */
+        boolean nextSegment() {
+            int from = mSegment * SEGMENT_BYTES;
+            if (from >= mBlockBytes) return false;
+            int nbytes = mBlockBytes - from;
+            nbytes = nbytes < SEGMENT_BYTES ? nbytes : SEGMENT_BYTES;
+            long base = mBlockBase + 30L * from;
+            
+            presieve(mBits, base);
+            crossOffSmall(base, nbytes);
+            crossOffLarge(from);
+            
+            mBase = base;
+            mBytes = nbytes;
+            mSegment++;
+            return true;
         }
         
-        public R take() {
-            Future<R> future = null;
+        private void crossOffSmall(long base, int nbytes) {
+            long end = base + 30L * nbytes;
+            int[] offs = mOffsets;
+            int valid = mNextBase == base ? mValid : 0;
             
-            synchronized (this) {
-                if (mPendingResults.isEmpty()){
-                    return null;
+            int i = mFirstSmall;
+            for (; i < mFirstLarge; i++) {
+                int p = mPrimes[i];
+                // Crossing off starts from p^2: done if it's past the segment
+                if ((long) p * p >= end) break;
+                
+                for (int j = 0; j < 8; j++) {
+                    int q = i < valid 
+                        ? offs[(i << 3) + j]
+                        : firstMultiple(p, j, base);
+                    q = crossOff(mBits, nbytes, p, j, q);
+                    offs[(i << 3) + j] = q - nbytes;
                 }
-                future = mPendingResults.poll();
             }
-            try {
-                // !!! Can block! Must be called without the lock held, 
-                // otherwise there is a high chance of deadlock
-                R result = future.get();
-                submitNext();
-                return result;
-            } catch (Exception e){
-                System.err.println("Exception in take()... shutting down");
-                e.printStackTrace();
-                shutdown();
-                return null;
+            mNextBase = end;
+            mValid = i;
+        }
+        
+        private void crossOffLarge(int from) {
+            int e = mHeads[mSegment];
+            mHeads[mSegment] = -1;
+            while (e != -1) {
+                int next = mLinks[e];
+                int q = mPositions[e];
+                int stream = mStreams[e];
+                mBits.set(((q - from) << 3) | (stream & 7));
+                
+                // Move the stream to the bucket of its next multiple, or
+                // free it if that's past the block
+                q += mPrimes[stream >>> 3];
+                if (q < mBlockBytes) {
+                    int s = q / SEGMENT_BYTES;
+                    mPositions[e] = q;
+                    mLinks[e] = mHeads[s];
+                    mHeads[s] = e;
+                } else {
+                    mLinks[e] = mFree;
+                    mFree = e;
+                }
+                e = next;
             }
         }
         
-        public synchronized void shutdown() {
-            mPool.shutdownNow();
+        private void addToBucket(int q, int stream) {
+            int e = mFree;
+            if (e != -1) {
+                mFree = mLinks[e];
+            } else {
+                if (mUsed == mLinks.length) {
+                    int cap = mUsed > 0 ? mUsed << 1 : 1024;
+                    mLinks = Arrays.copyOf(mLinks, cap);
+                    mPositions = Arrays.copyOf(mPositions, cap);
+                    mStreams = Arrays.copyOf(mStreams, cap);
+                }
+                e = mUsed++;
+            }
+            int s = q / SEGMENT_BYTES;
+            mPositions[e] = q;
+            mStreams[e] = stream;
+            mLinks[e] = mHeads[s];
+            mHeads[s] = e;
         }
     }
     
-    /** Wraps a call to {@link #sieveSegment(ArrayList<long>, long, long)} */
-    static class SieveSegmentTask implements Callable<SieveSegmentTask.Result> {
-        final ArrayList<Long> mPrimes;
+    /** 
+     * Byte, relative to <code>base</code>, of the first multiple 
+     * <code>p * k >= max(p^2, base)</code> with k in the wheel stream 
+     * <code>j</code>, that is k = WHEEL[j] (mod 30).
+     */
+    private static int firstMultiple(long p, int j, long base) {
+        long k = (base + p - 1) / p;
+        k = k > p ? k : p;
+        k += ((WHEEL[j] - k) % 30 + 30) % 30;
+        return (int) ((p * k - base) / 30);
+    }
+    
+    /** 
+     * Crosses off the multiples of <code>p</code> of stream <code>j</code>
+     * from byte <code>q</code>. Returns the first byte past the segment.
+     */
+    private static int crossOff(BitArray seg, int nbytes, int p, int j, 
+            int q) {
+        int bit = streamBit(p, j);
+        for (; q < nbytes; q += p) {
+            seg.set((q << 3) | bit);
+        }
+        return q;
+    }
+    
+    /** Bit of the multiples of <code>p</code> in stream <code>j</code> */
+    private static int streamBit(int p, int j) {
+        // All the multiples of the stream have the same residue
+        return WHEEL_BIT[(p % 30) * WHEEL[j] % 30];
+    }
+    
+    /** 
+     * Copies the multiples of 7, 11 and 13 in the segment starting at 
+     * <code>base</code>, a multiple of 120, then stamps those of the
+     * {@link #STAMPED_PRIMES}.
+     */
+    private static void presieve(BitArray seg, long base) {
+        // Pattern bytes of base / 30 onwards: 4 bytes per 120 numbers, 8 per
+        // word. Odd offsets start a period later, where they're even
+        int q = (int) ((base / 120) % PRESIEVE_PERIOD);
+        if ((q & 1) != 0) q += PRESIEVE_PERIOD;
+        seg.fill(PRESIEVE_PATTERN, q >> 1);
+        
+        // Byte base / 30 is at the start of word base / 30 / 8, modulo the
+        // period of the pattern
+        long b = base / 30;
+        for (int s = 0; s < STAMPED_PRIMES.length; s++) {
+            int period = STAMP_PATTERNS[s].length;
+            int from = (int) ((b % period) * STAMP_INVERSES[s] % period);
+            seg.stamp(STAMP_PATTERNS[s], from);
+        }
+        
+        if (base == 0) {
+            // 1 is not a prime, while the primes stamped are
+            seg.set(0);
+            seg.clear(WHEEL_BIT[7]);
+            seg.clear(WHEEL_BIT[11]);
+            seg.clear(WHEEL_BIT[13]);
+            for (int[] primes : STAMPED_PRIMES) {
+                seg.clear(wheelIndex(0, primes[0]));
+                seg.clear(wheelIndex(0, primes[1]));
+            }
+        }
+    }
+    
+    /** 
+     * Counts the primes in the blocks <code>[mFrom, mTo)</code>, splitting
+     * them in halves until a single one is left, so that idle workers can
+     * steal the other halves.
+     */
+    static class CountBlocksTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+        final int[] mPrimes;
+        final long mStart;
+        final long mLow;
+        final long mHigh;
+        final int mFrom;
+        final int mTo;
+        
+        CountBlocksTask(int[] primes, long start, long lo, long hi, 
+                int from, int to) {
+            mPrimes = primes;
+            mStart = start;
+            mLow = lo;
+            mHigh = hi;
+            mFrom = from;
+            mTo = to;
+        }
+        
+        @Override
+        protected Long compute() {
+            if (mTo - mFrom == 1) {
+                long base = mStart + mFrom * BLOCK_SPAN;
+                return sieveBlock(mPrimes, base, mLow, mHigh, null);
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            CountBlocksTask left = new CountBlocksTask(mPrimes, mStart, mLow,
+                mHigh, mFrom, mid);
+            CountBlocksTask right = new CountBlocksTask(mPrimes, mStart, mLow,
+                mHigh, mid, mTo);
+            left.fork();
+            long count = right.compute();
+            return count + left.join();
+        }
+    }
+    
+    /** 
+     * Counts and formats the primes of a block, handing them to a 
+     * {@link ReorderBuffer} with sequence number <code>mSeq</code>. 
+     * Primes are formatted into <code>mBuf</code>, reset beforehand.
+     */
+    static class PrintBlockTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final int[] mPrimes;
+        final long mBase;
         final long mLow;
         final long mHigh;
+        final ByteBuilder mBuf;
+        final int mEncoding;
+        final ReorderBuffer<BlockResult> mResults;
+        final int mSeq;
         
-        SieveSegmentTask(ArrayList<Long> primes, long lo, long hi) {
+        PrintBlockTask(int[] primes, long base, long lo, long hi,
+                ByteBuilder buf, int encoding,
+                ReorderBuffer<BlockResult> results, int seq) {
             mPrimes = primes;
+            mBase = base;
             mLow = lo;
             mHigh = hi;
+            mBuf = buf;
+            mEncoding = encoding;
+            mResults = results;
+            mSeq = seq;
         }
         
-        public Result call() {
-            BitArray arr = sieveSegment(mPrimes, mLow, mHigh);
-            return new Result(arr, mLow, mHigh);
+        @Override
+        protected void compute() {
+            try {
+                mBuf.reset();
+                long count = sieveBlock(mPrimes, mBase, mLow, mHigh, mBuf,
+                    mEncoding);
+                mResults.put(mSeq, new BlockResult(count, mBuf));
+            } catch (RuntimeException e) {
+                mResults.fail(e);
+            } catch (Error e) {
+                mResults.fail(e);
+                throw e;
+            }
         }
         
         @Override
         public String toString() {
-            return "SieveSegmentedTask{ mPrimes.get(0) = " 
-                + mPrimes.get(0) + ", mLow = " + mLow 
-                + ", mHigh = " + mHigh + "}";
+            return "PrintBlockTask{ mBase = " + mBase + ", mLow = " + mLow 
+                + ", mHigh = " + mHigh + ", mSeq = " + mSeq + "}";
         }
+    }
+    
+    /**
+     * Receives the primes of consecutive ranges, in order, a block at a time
+     * in one of {@link PrimeFormat}
+     */
+    interface BlockSink {
+        /** 
+         * Takes the <code>count</code> primes in <code>[lo..hi]</code>: as
+         * text, each after a separator, or in a binary format. The buffer is
+         * reused once this returns.
+         */
+        void write(long lo, long hi, ByteBuilder bytes, long count);
+    }
+    
+    /** Prints texts, without the leading separator if it's the first */
+    static class PrintSink implements BlockSink {
+        final PrintStream mOut;
+        boolean mFirst;
         
-        static class Result {
-            BitArray array;
-            final long low;
-            final long high;
-            
-            Result(BitArray arr, long lo, long hi) {
-                array = arr;
-                low = lo;
-                high = hi;
+        PrintSink(PrintStream out, boolean first) {
+            mOut = out;
+            mFirst = first;
+        }
+        
+        @Override
+        public void write(long lo, long hi, ByteBuilder bytes, long count) {
+            if (bytes.size() == 0) return;
+            int skip = mFirst ? 1 : 0;
+            mOut.write(bytes.array(), skip, bytes.size() - skip);
+            mFirst = false;
+        }
+    }
+    
+    static class BlockResult {
+        final long count;
+        final ByteBuilder bytes;
+        
+        BlockResult(long cnt, ByteBuilder b) {
+            count = cnt;
+            bytes = b;
+        }
+    }
+    
+    /**
+     * Bounded buffer putting results back in order. Results are put with
+     * their sequence number, in any order, and taken in sequence order: 
+     * sequence numbers must not go past the oldest one not taken yet by more
+     * than the capacity. A failure is thrown back to the taker.
+     */
+    static class ReorderBuffer<R> {
+        private final Object[] mSlots;
+        private Throwable mFailure;
+        
+        ReorderBuffer(int capacity) {
+            mSlots = new Object[capacity];
+        }
+        
+        synchronized void put(int seq, R result) {
+            mSlots[seq % mSlots.length] = result;
+            notifyAll();
+        }
+        
+        synchronized void fail(Throwable t) {
+            if (mFailure == null) mFailure = t;
+            notifyAll();
+        }
+        
+        /** Blocks until the result <code>seq</code> is in */
+        @SuppressWarnings("unchecked")
+        synchronized R take(int seq) {
+            int i = seq % mSlots.length;
+            boolean interrupted = false;
+            while (mSlots[i] == null && mFailure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
-            
-            void free() {
-                array = null;
+            if (interrupted) Thread.currentThread().interrupt();
+            if (mFailure != null) {
+                throw new RuntimeException("Sieving failed", mFailure);
             }
+            R result = (R) mSlots[i];
+            mSlots[i] = null;
+            return result;
         }
     }
     
@@ -317,31 +1191,109 @@ public class PrimeList {
      */
     static class BitArray {
         private final int mSize;
-        private final int[] mArr;
+        private final long[] mArr;
         
         BitArray(int size) {
             mSize = size;
             
-            // sz = ceil(size / 32)
-            int sz = (size & 0x1F) == 0 ? 0 : 1;
-            sz += size >> 5;
+            // sz = ceil(size / 64)
+            int sz = (size & 0x3F) == 0 ? 0 : 1;
+            sz += size >> 6;
             
             // Maps:  index --> (arr-index, bit)
-            //          k   --> (k / 32, k % 32)
-            //                = (k >> 5, k & 0x1F)
-            mArr = new int[sz];
+            //          k   --> (k / 64, k % 64)
+            //                = (k >> 6, k & 0x3F)
+            mArr = new long[sz];
         }
         
         int get(int i) {
-            return (mArr[i >> 5] >> (i & 0x1F))  &  1;
+            return (int) (mArr[i >> 6] >>> (i & 0x3F))  &  1;
         }
         
         void set(int i) {
-            mArr[i >> 5]  |=  (1 << (i & 0x1F));
+            mArr[i >> 6]  |=  (1L << (i & 0x3F));
         }
         
         void clear(int i) {
-            mArr[i >> 5]  &=  ~(i << (i & 0x1F));
+            mArr[i >> 6]  &=  ~(1L << (i & 0x3F));
+        }
+        
+        /** 
+         * Overwrites all the words with <code>pattern</code>, repeated
+         * cyclically from its word <code>from</code>.
+         */
+        void fill(long[] pattern, int from) {
+            int len = mArr.length;
+            for (int i = 0; i < len; ) {
+                int n = pattern.length - from;
+                n = n < len - i ? n : len - i;
+                System.arraycopy(pattern, from, mArr, i, n);
+                i += n;
+                from = 0;
+            }
+        }
+        
+        /** 
+         * ORs <code>pattern</code> into all the words, repeated cyclically
+         * from its word <code>from</code>.
+         */
+        void stamp(long[] pattern, int from) {
+            long[] arr = mArr;
+            int len = arr.length;
+            int period = pattern.length;
+            for (int i = 0; i < len; ) {
+                int n = period - from;
+                n = n < len - i ? n : len - i;
+                for (int k = 0; k < n; k++) {
+                    arr[i + k] |= pattern[from + k];
+                }
+                i += n;
+                from = 0;
+            }
+        }
+        
+        /** Number of bits set in <code>[from, to)</code> */
+        int count(int from, int to) {
+            if (from >= to) return 0;
+            int w0 = from >> 6;
+            int w1 = (to - 1) >> 6;
+            long first = -1L << (from & 0x3F);
+            long last = -1L >>> (63 - ((to - 1) & 0x3F));
+            if (w0 == w1) {
+                return Long.bitCount(mArr[w0] & first & last);
+            }
+            int count = Long.bitCount(mArr[w0] & first);
+            for (int w = w0 + 1; w < w1; w++) {
+                count += Long.bitCount(mArr[w]);
+            }
+            return count + Long.bitCount(mArr[w1] & last);
+        }
+        
+        /** Number of bits set */
+        int cardinality() {
+            return count(0, mSize);
+        }
+        
+        /** 
+         * Index of the first bit not set in <code>[from, to)</code>, or 
+         * <code>to</code> if they're all set.
+         */
+        int nextClearBit(int from, int to) {
+            if (from >= to) return to;
+            int w = from >> 6;
+            int w1 = (to - 1) >> 6;
+            long word = ~mArr[w] & (-1L << (from & 0x3F));
+            while (word == 0) {
+                if (++w > w1) return to;
+                word = ~mArr[w];
+            }
+            int k = (w << 6) + Long.numberOfTrailingZeros(word);
+            return k < to ? k : to;
+        }
+        
+        /** Word <code>w</code>, packing bits 64w..64w+63 */
+        long word(int w) {
+            return mArr[w];
         }
         
         int size() {
@@ -355,24 +1307,34 @@ public class PrimeList {
         checkCondArg(args.length == 1, 
             "args[0] must be a pathname and the only argument");
         
-        String line = null;
-        BufferedReader br = null;
+        // All the queries are read first, to sieve once up to the largest.
+        // A bad line aborts before anything is printed
+        NumberReader in = null;
+        long[] ns = new long[16];
+        int len = 0;
         try {
-            br = new BufferedReader(new FileReader(args[0]));
-            while ((line = br.readLine()) != null) {
-                long n = Long.parseLong(line);
-                long count = sieve(n, true);
-                // Uncomment this and set the above parameter to false for a
-                // speed test. See also README.txt
-                // System.out.println("count: " + count);
+            in = new NumberReader(new File(args[0]));
+            while (in.hasNext()) {
+                long n = in.nextLong();
+                checkCondArg(0L <= n && n <= MAX_N,
+                    "Line " + in.lineNumber() + ": n must be in [0, 10^13]");
+                if (len == ns.length) ns = Arrays.copyOf(ns, 2 * len);
+                ns[len++] = n;
             }
+            long[] counts = sieve(Arrays.copyOf(ns, len), System.out);
+            // Uncomment this and pass null above for a speed test. See also
+            // README.txt
+            // System.out.println("counts: " + Arrays.toString(counts));
         } catch (Exception e) {
             System.err.println(
                 "File must exist and be formatted according"+
                     " to the specs. Aborting...");
             e.printStackTrace(System.err);
         } finally {
-            closeQuietly(br);
+            closeQuietly(in);
+        }
+        if (SieveMetrics.ENABLED) {
+            System.err.println(SieveMetrics.INSTANCE);
         }
     }
 }
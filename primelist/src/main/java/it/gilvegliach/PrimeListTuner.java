@@ -0,0 +1,310 @@
+package it.gilvegliach;
+
+import static it.gilvegliach.Utils.checkCondArg;
+import static it.gilvegliach.Utils.closeQuietly;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Tunes {@link PrimeList} for the host: the worker count, the segment size
+ * and the threshold between sieving in a single pass and by segments. Each
+ * setting is tried in a JVM of its own, as the sieve fixes them when it's
+ * loaded, and the fastest are saved to a profile, a properties file read by
+ * every later run. System properties still take precedence over it.
+ * <p>
+ * Run it once with <code>java it.gilvegliach.PrimeListTuner [profile]</code>
+ * or let the first run calibrate with <code>-Dprimelist.calibrate=true</code>.
+ * The profile is <code>~/.primelist.properties</code> unless set with
+ * <code>-Dprimelist.profile</code>.
+ */
+public class PrimeListTuner {
+    static final String THREADS = "threads";
+    static final String SEGMENT_BYTES = "segmentBytes";
+    static final String LARGE_N_THRESHOLD = "largeNThreshold";
+
+    private static final String TRIAL = "--trial";
+    private static final String SIEVE_TRIAL = "sieve";
+    private static final String THRESHOLD_TRIAL = "threshold";
+
+    // Counting sieve of a few blocks, far enough for the large primes
+    private static final long TRIAL_LO = 1000000000000L;
+    private static final int TRIAL_BLOCKS = 4;
+    private static final int TRIAL_RUNS = 3;
+    private static final int MIN_SEGMENT_BYTES = 1 << 15;
+    private static final long[] THRESHOLDS = {
+        100000, 300000, 1000000, 3000000, 10000000 };
+    // More workers are kept only if at least this much faster
+    private static final double MIN_SPEEDUP = 1.05;
+
+    /** 
+     * The profile file, whether it exists or not, or null if it's set to
+     * none with an empty <code>primelist.profile</code>.
+     */
+    public static File profileFile() {
+        String path = System.getProperty("primelist.profile");
+        if (path != null) return path.isEmpty() ? null : new File(path);
+        return new File(System.getProperty("user.home"), ".primelist.properties");
+    }
+
+    /**
+     * Settings of the profile, none if there's no profile. It's calibrated
+     * first if it's missing and <code>primelist.calibrate</code> is true.
+     */
+    static Properties loadProfile() {
+        File file = profileFile();
+        Properties profile = new Properties();
+        if (file == null) return profile;
+        try {
+            if (!file.exists() && Boolean.getBoolean("primelist.calibrate")) {
+                return calibrate(file);
+            }
+            if (file.exists()) profile = read(file);
+        } catch (IOException e) {
+            // Defaults will do: tuning is not worth aborting for
+            System.err.println("Profile " + file + " not used: " + e);
+        }
+        return profile;
+    }
+
+    /**
+     * Setting <code>key</code>: the system property <code>primelist.key</code>,
+     * else the profile, else <code>def</code>. Values that are not numbers
+     * are dropped and the others clamped to <code>[min..max]</code>, both
+     * logged: a typo or a corrupt profile would go unnoticed otherwise.
+     */
+    static long setting(Properties profile, String key, long def, long min,
+            long max) {
+        String where = "primelist." + key;
+        String value = System.getProperty(where);
+        if (value == null) {
+            where = "Profile " + key;
+            value = profile.getProperty(key);
+        }
+        if (value == null) return def;
+        long n;
+        try {
+            n = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println(where + " not a number: " + value);
+            return def;
+        }
+        long clamped = n < min ? min : n > max ? max : n;
+        if (clamped != n) {
+            System.err.println(where + " " + n + " out of [" + min + ".." 
+                + max + "], " + clamped + " used");
+        }
+        return clamped;
+    }
+
+    /**
+     * Tries the settings on this host and saves the fastest to
+     * <code>file</code>, returning them.
+     */
+    public static Properties calibrate(File file) throws IOException {
+        int cpus = PrimeList.availableCpus();
+
+        // Workers first, on the default segments: doubling up to the cpus
+        List<Integer> counts = new ArrayList<Integer>();
+        for (int t = 1; t < cpus; t <<= 1) counts.add(t);
+        counts.add(cpus);
+        int threads = 1;
+        long best = Long.MAX_VALUE;
+        for (int t : counts) {
+            long nanos = trial(SIEVE_TRIAL, t, 0, 0);
+            if (nanos * MIN_SPEEDUP < best) {
+                best = nanos;
+                threads = t;
+            }
+        }
+
+        // Then segments, from 32 kb up to a whole block
+        int segmentBytes = MIN_SEGMENT_BYTES;
+        best = Long.MAX_VALUE;
+        for (int b = MIN_SEGMENT_BYTES; b <= PrimeList.BLOCK_BYTES; b <<= 1) {
+            long nanos = trial(SIEVE_TRIAL, threads, b, 0);
+            if (nanos < best) {
+                best = nanos;
+                segmentBytes = b;
+            }
+        }
+
+        long threshold = trial(THRESHOLD_TRIAL, threads, segmentBytes, 0);
+
+        Properties profile = new Properties();
+        profile.setProperty(THREADS, String.valueOf(threads));
+        profile.setProperty(SEGMENT_BYTES, String.valueOf(segmentBytes));
+        profile.setProperty(LARGE_N_THRESHOLD, String.valueOf(threshold));
+        write(profile, file);
+        return profile;
+    }
+
+    /**
+     * Runs a trial in a new JVM with the given settings, 0 for the default,
+     * returning what it prints.
+     */
+    private static long trial(String kind, int threads, int segmentBytes,
+            long threshold) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin"
+            + File.separator + "java";
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(java);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        // Nothing but the settings tried: no profile
+        cmd.add("-Dprimelist.profile=");
+        if (threads > 0) cmd.add("-Dprimelist.threads=" + threads);
+        if (segmentBytes > 0) {
+            cmd.add("-Dprimelist.segmentBytes=" + segmentBytes);
+        }
+        if (threshold > 0) cmd.add("-Dprimelist.largeNThreshold=" + threshold);
+        cmd.add(PrimeListTuner.class.getName());
+        cmd.add(TRIAL);
+        cmd.add(kind);
+
+        Process process = new ProcessBuilder(cmd)
+            .redirectError(Redirect.INHERIT)
+            .start();
+        String line = null;
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), "US-ASCII"));
+            for (String l = br.readLine(); l != null; l = br.readLine()) {
+                line = l;
+            }
+            if (process.waitFor() != 0 || line == null) {
+                throw new IOException("Trial " + cmd + " failed");
+            }
+            return Long.parseLong(line.trim());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during trial " + cmd);
+        } catch (NumberFormatException e) {
+            throw new IOException("Trial " + cmd + " printed " + line);
+        } finally {
+            closeQuietly(br);
+            process.destroy();
+        }
+    }
+
+    /** Best time of the counting sieve on the settings of this JVM */
+    private static long sieveTrial() {
+        long hi = TRIAL_LO + TRIAL_BLOCKS * PrimeList.BLOCK_SPAN - 1;
+        int[] primes = PrimeList.sieveInitial(PrimeList.isqrt(hi));
+        long best = Long.MAX_VALUE;
+        // The first run warms up
+        for (int i = 0; i <= TRIAL_RUNS; i++) {
+            long start = System.nanoTime();
+            PrimeList.sieveParallel(primes, TRIAL_LO, hi, null, false);
+            long nanos = System.nanoTime() - start;
+            if (i > 0 && nanos < best) best = nanos;
+        }
+        return best;
+    }
+
+    /**
+     * Smallest n of {@link #THRESHOLDS} printed faster by segments than in
+     * a single pass, or past the largest if there's none.
+     */
+    private static long thresholdTrial() {
+        PrintStream sink = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        for (long n : THRESHOLDS) {
+            long single = printTrial(n, PrimeList.MAX_LARGE_N_THRESHOLD, sink);
+            long segmented = printTrial(n, PrimeList.MIN_LARGE_N_THRESHOLD,
+                sink);
+            if (segmented < single) return n;
+        }
+        return 2 * THRESHOLDS[THRESHOLDS.length - 1];
+    }
+
+    private static long printTrial(long n, long threshold, PrintStream sink) {
+        long saved = PrimeList.largeNThreshold();
+        PrimeList.setLargeNThreshold(threshold);
+        try {
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i <= TRIAL_RUNS; i++) {
+                long start = System.nanoTime();
+                PrimeList.sieve(n, sink);
+                long nanos = System.nanoTime() - start;
+                if (i > 0 && nanos < best) best = nanos;
+            }
+            return best;
+        } finally {
+            PrimeList.setLargeNThreshold(saved);
+        }
+    }
+
+    private static Properties read(File file) throws IOException {
+        Properties profile = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            profile.load(in);
+        } finally {
+            closeQuietly(in);
+        }
+        return profile;
+    }
+
+    /** Writes a temporary file first, not to leave a partial profile */
+    private static void write(Properties profile, File file)
+            throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile("primelist", ".properties", dir);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            profile.store(out, "Tuned by " + PrimeListTuner.class.getName());
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Cannot write " + file);
+                }
+            }
+        } finally {
+            closeQuietly(out);
+            tmp.delete();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && TRIAL.equals(args[0])) {
+            if (SIEVE_TRIAL.equals(args[1])) {
+                System.out.println(sieveTrial());
+            } else if (THRESHOLD_TRIAL.equals(args[1])) {
+                System.out.println(thresholdTrial());
+            } else {
+                throw new IllegalArgumentException("Unknown trial " + args[1]);
+            }
+            return;
+        }
+        checkCondArg(args.length <= 1,
+            "args[0] must be the profile pathname, if any");
+        File file = args.length == 1 ? new File(args[0]) : profileFile();
+        checkCondArg(file != null, "No profile: primelist.profile is empty");
+        Properties profile = calibrate(file);
+        System.out.println("Saved to " + file + ": " + profile);
+    }
+}
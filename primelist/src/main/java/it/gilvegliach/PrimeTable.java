@@ -0,0 +1,302 @@
+package it.gilvegliach;
+
+import static it.gilvegliach.Utils.checkCondArg;
+import static it.gilvegliach.Utils.checkNonNullArg;
+import static it.gilvegliach.Utils.closeQuietly;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import it.gilvegliach.PrimeList.SegmentSieve;
+
+/**
+ * Read-only table of the primes up to a limit, built once into a file by
+ * {@link #build(long, File)} and memory mapped by {@link #open(File)}: the
+ * pages are shared with any other process mapping the same file and don't
+ * take up heap. Answers isPrime() in O(1), pi() in O(1) (up to 8 words),
+ * nthPrime() in O(log n) and next/prevPrime() in about the prime gap.
+ * <p>
+ * The file holds, big endian, a header followed by the wheel bits of the
+ * segmented sieve, flipped so that primes are set, one long per 64 bits:
+ * <pre>
+ *     magic (8 bytes) | version (4) | unused (4) | limit (8)
+ *     words:  bits of the numbers 30q + r, r in WHEEL, at 8q + WHEEL_BIT[r]
+ *     counts: bits set before each run of 8 words, then the total
+ * </pre>
+ * It's about 1 byte every 30 numbers, plus an eighth for the counts.
+ * Instances are immutable and safe to share between threads.
+ */
+public final class PrimeTable {
+    public static final long MAX_LIMIT = 1L << 32;  // file of about 160 mb
+
+    private static final long MAGIC = 0x5052494D45544142L;  // "PRIMETAB"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+    private static final int BLOCK_WORDS = 8;  // words per count
+
+    private static final int[] SMALL_PRIMES = { 2, 3, 5 };
+    private static final int[] SMALL_PI = { 0, 0, 1, 2, 2, 3, 3 };
+
+    private final long mLimit;
+    private final int mSmall;     // primes in SMALL_PRIMES up to the limit
+    private final LongBuffer mWords;
+    private final LongBuffer mCounts;
+
+    private PrimeTable(long limit, LongBuffer words, LongBuffer counts) {
+        mLimit = limit;
+        mSmall = SMALL_PI[(int) Math.min(limit, 6)];
+        mWords = words;
+        mCounts = counts;
+    }
+
+    /**
+     * Sieves the primes up to <code>limit</code> into <code>file</code>. The
+     * table is written next to it first, and then renamed.
+     */
+    public static void build(long limit, File file) throws IOException {
+        checkCondArg(0L <= limit && limit <= MAX_LIMIT,
+            "limit must be in [0, 2^32]");
+        checkNonNullArg(file, "file must not be null");
+
+        int end = PrimeList.wheelIndex(0, limit + 1);
+        int nwords = wordCount(end);
+        long[] counts = new long[blockCount(nwords) + 1];
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 1 << 16));
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(0);
+            out.writeLong(limit);
+
+            // Segments start at multiples of BLOCK_SPAN or of
+            // 30 * SEGMENT_BYTES, hence of 240: they're whole words
+            int w = 0;
+            long count = 0;
+            int[] primes = PrimeList.sieveInitial(PrimeList.isqrt(limit));
+            SegmentSieve sieve = new SegmentSieve(primes);
+            for (long base = 0; base <= limit; base += PrimeList.BLOCK_SPAN) {
+                sieve.startBlock(base, PrimeList.blockBytes(base, limit));
+                while (sieve.nextSegment()) {
+                    int n = (sieve.mBytes + 7) >> 3;
+                    for (int i = 0; i < n && w < nwords; i++, w++) {
+                        if (w % BLOCK_WORDS == 0) {
+                            counts[w / BLOCK_WORDS] = count;
+                        }
+                        long word = ~sieve.mBits.word(i) & wordMask(w, end);
+                        count += Long.bitCount(word);
+                        out.writeLong(word);
+                    }
+                }
+            }
+            // Nothing left to sieve, the last word may be past the segments
+            for (; w < nwords; w++) {
+                if (w % BLOCK_WORDS == 0) {
+                    counts[w / BLOCK_WORDS] = count;
+                }
+                out.writeLong(0);
+            }
+            counts[counts.length - 1] = count;
+
+            for (long c : counts) {
+                out.writeLong(c);
+            }
+            out.close();
+            out = null;
+        } finally {
+            closeQuietly(out);
+        }
+
+        // Never leave a half written table under the final name
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    /** Maps a table written by {@link #build(long, File)}, read only */
+    public static PrimeTable open(File file) throws IOException {
+        checkNonNullArg(file, "file must not be null");
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException("Not a prime table: " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buf =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            long limit = buf.getLong(16);
+            if (buf.getLong(0) != MAGIC || buf.getInt(8) != VERSION ||
+                    limit < 0 || limit > MAX_LIMIT) {
+                throw new IOException("Not a prime table: " + file);
+            }
+            int nwords = wordCount(PrimeList.wheelIndex(0, limit + 1));
+            int ncounts = blockCount(nwords) + 1;
+            if (size != HEADER_BYTES + 8L * (nwords + ncounts)) {
+                throw new IOException("Truncated prime table: " + file);
+            }
+
+            buf.position(HEADER_BYTES);
+            LongBuffer longs = buf.slice().asLongBuffer();
+            longs.limit(nwords);
+            LongBuffer words = longs.slice();
+            longs.limit(nwords + ncounts).position(nwords);
+            LongBuffer counts = longs.slice();
+            return new PrimeTable(limit, words, counts);
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /** Largest number in the table */
+    public long limit() {
+        return mLimit;
+    }
+
+    /** Number of primes in the table, that is pi(limit()) */
+    public long count() {
+        return mSmall + mCounts.get(mCounts.limit() - 1);
+    }
+
+    public boolean isPrime(long x) {
+        checkRange(x);
+        if (x < 7) return x == 2 || x == 3 || x == 5;
+        // Off the wheel, x shares a factor with 30
+        int k = PrimeList.wheelIndex(0, x);
+        if (PrimeList.wheelNumber(0, k) != x) return false;
+        return (mWords.get(k >> 6) & (1L << (k & 0x3F))) != 0;
+    }
+
+    /** Number of primes in <code>[0..x]</code> */
+    public long pi(long x) {
+        checkRange(x);
+        if (x < 7) return SMALL_PI[(int) x];
+
+        // Bits mapping numbers <= x: whole words up to w, then part of w
+        int k = PrimeList.wheelIndex(0, x + 1);
+        int w = k >> 6;
+        long count = mSmall + mCounts.get(w / BLOCK_WORDS);
+        for (int i = w - w % BLOCK_WORDS; i < w; i++) {
+            count += Long.bitCount(mWords.get(i));
+        }
+        long bits = mWords.get(w) & ((1L << (k & 0x3F)) - 1);
+        return count + Long.bitCount(bits);
+    }
+
+    /** The <code>n</code>-th prime, from 1: nthPrime(1) = 2 */
+    public long nthPrime(long n) {
+        checkCondArg(1L <= n && n <= count(), "n must be in [1, count()]");
+        if (n <= mSmall) return SMALL_PRIMES[(int) n - 1];
+
+        // Last run of words with less than r bits before it
+        long r = n - mSmall;
+        int lo = 0;
+        int hi = mCounts.limit() - 1;
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (mCounts.get(mid) < r) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        r -= mCounts.get(lo);
+
+        // Then the word, and the bit within it
+        int w = lo * BLOCK_WORDS;
+        long word = mWords.get(w);
+        for (int c = Long.bitCount(word); c < r; c = Long.bitCount(word)) {
+            r -= c;
+            word = mWords.get(++w);
+        }
+        for (; r > 1; r--) {
+            word &= word - 1;
+        }
+        int k = (w << 6) + Long.numberOfTrailingZeros(word);
+        return PrimeList.wheelNumber(0, k);
+    }
+
+    /** Smallest prime > <code>x</code>, or -1 if it's past the limit */
+    public long nextPrime(long x) {
+        checkCondArg(x >= 0, "x must be >= 0");
+        for (int p : SMALL_PRIMES) {
+            if (x < p) return p <= mLimit ? p : -1;
+        }
+        if (x >= mLimit) return -1;
+
+        int k = PrimeList.wheelIndex(0, x + 1);
+        int w = k >> 6;
+        long word = mWords.get(w) & (-1L << (k & 0x3F));
+        while (word == 0) {
+            // No bits are set past the limit
+            if (++w == mWords.limit()) return -1;
+            word = mWords.get(w);
+        }
+        return PrimeList.wheelNumber(0,
+            (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    /**
+     * Largest prime < <code>x</code>, or -1 if there are none. Primes
+     * below x are in the table up to <code>limit() + 1</code>.
+     */
+    public long prevPrime(long x) {
+        checkCondArg(0L <= x && x <= mLimit + 1,
+            "x must be in [0, limit() + 1]");
+        if (x <= 7) {
+            for (int i = SMALL_PRIMES.length - 1; i >= 0; i--) {
+                if (SMALL_PRIMES[i] < x) return SMALL_PRIMES[i];
+            }
+            return -1;
+        }
+
+        // Bits mapping numbers < x, the first one is 7
+        int k = PrimeList.wheelIndex(0, x) - 1;
+        int w = k >> 6;
+        long word = mWords.get(w) & (-1L >>> (63 - (k & 0x3F)));
+        while (word == 0) {
+            word = mWords.get(--w);
+        }
+        return PrimeList.wheelNumber(0,
+            (w << 6) + 63 - Long.numberOfLeadingZeros(word));
+    }
+
+    private void checkRange(long x) {
+        checkCondArg(0L <= x && x <= mLimit, "x must be in [0, limit()]");
+    }
+
+    /** Words holding bits <code>[0, end)</code>, at least one */
+    private static int wordCount(int end) {
+        return (end >> 6) + 1;
+    }
+
+    private static int blockCount(int nwords) {
+        return (nwords + BLOCK_WORDS - 1) / BLOCK_WORDS;
+    }
+
+    /** Bits of word <code>w</code> that are below <code>end</code> */
+    private static long wordMask(int w, int end) {
+        long first = (long) w << 6;
+        if (first + 64 <= end) return -1L;
+        if (first >= end) return 0;
+        return (1L << (end - first)) - 1;
+    }
+}
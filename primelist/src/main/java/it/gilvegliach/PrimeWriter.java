@@ -0,0 +1,146 @@
+package it.gilvegliach;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the primes of a range in a binary format of {@link PrimeReader},
+ * a frame per block of the sieve. The workers encode the blocks, as they
+ * would format them as text; frames are deflated here, if need be, and
+ * written in order.
+ */
+final class PrimeWriter implements PrimeList.BlockSink {
+    private final OutputStream mOut;
+    private final int mEncoding;
+    private final boolean mCompressed;
+    private final ByteBuilder mHeader = new ByteBuilder(64);
+    private final Deflater mDeflater;
+    private byte[] mStored = new byte[1 << 16];
+
+    private long mOffset;           // bytes written so far
+    private long mCount;
+    private long[] mIndex = new long[3 * 16];
+    private int mFrames;
+
+    PrimeWriter(OutputStream out, int encoding, boolean compressed) {
+        mOut = out;
+        mEncoding = encoding;
+        mCompressed = compressed;
+        mDeflater = compressed ? new Deflater(Deflater.BEST_SPEED) : null;
+    }
+
+    /** Writes the primes in <code>[lo..hi]</code>, returning their count */
+    long run(long lo, long hi) throws IOException {
+        try {
+            mHeader.reset();
+            for (byte b : PrimeReader.MAGIC) {
+                mHeader.append(b);
+            }
+            mHeader.append((byte) PrimeReader.VERSION)
+                .append((byte) mEncoding)
+                .append((byte) (mCompressed ? PrimeReader.COMPRESSED : 0))
+                .appendVarint(lo)
+                .appendVarint(hi);
+            writeHeader();
+
+            // No primes in [0..1]
+            if (lo <= hi && hi >= 2) {
+                PrimeList.sieveRange(lo, hi, this, mEncoding);
+            }
+
+            mHeader.reset();
+            mHeader.append((byte) PrimeReader.END).appendVarint(mCount);
+            writeHeader();
+            if (mCompressed) writeIndex();
+            mOut.flush();
+            return mCount;
+        } catch (WriteFailed e) {
+            throw e.getCause();
+        } finally {
+            if (mDeflater != null) mDeflater.end();
+        }
+    }
+
+    @Override
+    public void write(long lo, long hi, ByteBuilder payload, long count) {
+        if (count == 0) return;
+        try {
+            if (mFrames == mIndex.length / 3) {
+                mIndex = Arrays.copyOf(mIndex, 2 * mIndex.length);
+            }
+            mIndex[3 * mFrames] = lo;
+            mIndex[3 * mFrames + 1] = hi;
+            mIndex[3 * mFrames + 2] = mOffset;
+            mFrames++;
+
+            mHeader.reset();
+            mHeader.append((byte) PrimeReader.FRAME)
+                .appendVarint(lo)
+                .appendVarint(hi - lo)
+                .appendVarint(count)
+                .appendVarint(payload.size());
+            if (mCompressed) {
+                int stored = deflate(payload);
+                mHeader.appendVarint(stored);
+                writeHeader();
+                mOut.write(mStored, 0, stored);
+                mOffset += stored;
+            } else {
+                writeHeader();
+                payload.writeTo(mOut);
+                mOffset += payload.size();
+            }
+            mCount += count;
+        } catch (IOException e) {
+            throw new WriteFailed(e);
+        }
+    }
+
+    /** Deflates the payload into mStored, returning its length */
+    private int deflate(ByteBuilder payload) {
+        mDeflater.reset();
+        mDeflater.setInput(payload.array(), 0, payload.size());
+        mDeflater.finish();
+        int n = 0;
+        while (!mDeflater.finished()) {
+            if (n == mStored.length) {
+                mStored = Arrays.copyOf(mStored, 2 * mStored.length);
+            }
+            n += mDeflater.deflate(mStored, n, mStored.length - n);
+        }
+        return n;
+    }
+
+    private void writeHeader() throws IOException {
+        mHeader.writeTo(mOut);
+        mOffset += mHeader.size();
+    }
+
+    private void writeIndex() throws IOException {
+        DataOutputStream out = new DataOutputStream(mOut);
+        for (int i = 0; i < 3 * mFrames; i++) {
+            out.writeLong(mIndex[i]);
+        }
+        out.writeLong(mOffset);
+        out.writeInt(mFrames);
+        out.write(PrimeReader.MAGIC);
+        out.flush();
+    }
+
+    /** Carries an IOException of the output through the sieve */
+    static class WriteFailed extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        WriteFailed(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package it.gilvegliach;
+
+import static it.gilvegliach.Utils.closeQuietly;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Prints the primes below each of a list of n's, in order, as
+ * {@link PrimeList#sieve(long, PrintStream)} would, with a single pass of
+ * the sieve up to the largest n.
+ * <p>
+ * The primes below n, each after a separator, are a prefix of the same text
+ * for every n. It's produced once, in order, and printed as it goes for the
+ * query being answered. What a later query needs again is spilled to a
+ * temporary file, and copied from there. The length of the text below each
+ * n is found on the way, so that any query is answered by a single copy.
+ */
+final class QueryBatch implements PrimeList.BlockSink {
+    private static final int COPY_BUFFER_SIZE = 1 << 16;
+
+    private final long[] mNs;
+    private final PrintStream mOut;
+    private final long[] mKeep;       // largest n after each query, or 0
+    private final int[] mPrimes;      // base primes, up to mLimit
+    private final long mLimit;
+
+    // Distinct n's, sorted, with the bytes of text and the primes below them
+    private final long[] mCuts;
+    private final long[] mCutBytes;
+    private final long[] mCutCounts;
+    private int mNextCut;             // first one the text didn't reach yet
+
+    private long mCovered = 2;        // text of the primes below it is done
+    private long mBytes;
+    private long mCount;
+    private long mKeepNow;            // text below it is spilled
+
+    private File mSpillFile;
+    private RandomAccessFile mSpill;
+
+    QueryBatch(long[] ns, PrintStream out) {
+        mNs = ns;
+        mOut = out;
+
+        mKeep = new long[ns.length];
+        long max = 0;
+        for (int i = ns.length - 1; i >= 0; i--) {
+            mKeep[i] = max;
+            max = Math.max(max, ns[i]);
+        }
+
+        // Same pre-processing of PrimeList.sieve(), see comments there
+        long hi = Math.max(max - 1, 0);
+        boolean largeN = hi >= PrimeList.largeNThreshold();
+        mLimit = largeN ? PrimeList.isqrt(hi) : hi;
+        mPrimes = PrimeList.sieveInitial(mLimit);
+
+        long[] cuts = ns.clone();
+        Arrays.sort(cuts);
+        int len = 0;
+        for (int i = 0; i < cuts.length; i++) {
+            if (len == 0 || cuts[i] != cuts[len - 1]) cuts[len++] = cuts[i];
+        }
+        mCuts = Arrays.copyOf(cuts, len);
+        mCutBytes = new long[len];
+        mCutCounts = new long[len];
+        // No primes below 2: their text is empty from the start
+        while (mNextCut < len && mCuts[mNextCut] <= mCovered) mNextCut++;
+    }
+
+    /** Answers the queries, returning their counts */
+    long[] run() throws IOException {
+        long[] counts = new long[mNs.length];
+        try {
+            for (int i = 0; i < mNs.length; i++) {
+                long n = mNs[i];
+                mKeepNow = mKeep[i];
+                if (n > mCovered) {
+                    // The whole text so far is spilled, as n <= keep of the
+                    // previous query: print it and carry on sieving
+                    copySpill(mBytes);
+                    produce(mCovered, n - 1);
+                    mCovered = n;
+                    counts[i] = mCount;
+                } else {
+                    int c = Arrays.binarySearch(mCuts, n);
+                    copySpill(mCutBytes[c]);
+                    counts[i] = mCutCounts[c];
+                }
+                if (counts[i] > 0) mOut.write(PrimeList.NEWLINE);
+                mOut.flush();
+            }
+        } finally {
+            closeQuietly(mSpill);
+            if (mSpillFile != null) mSpillFile.delete();
+        }
+        return counts;
+    }
+
+    /** Produces the text of the primes in [lo..hi] */
+    private void produce(long lo, long hi) {
+        if (lo <= mLimit) {
+            long top = Math.min(hi, mLimit);
+            ByteBuilder text = new ByteBuilder(1 << 10);
+            long count = 0;
+            for (int i = PrimeList.lowerBound(mPrimes, lo);
+                    i < mPrimes.length && mPrimes[i] <= top; i++) {
+                text.append(PrimeList.SEPARATOR).append(mPrimes[i]);
+                count++;
+            }
+            write(lo, top, text, count);
+            lo = top + 1;
+        }
+        if (lo <= hi) {
+            PrimeList.sieveParallel(mPrimes, lo, hi, this);
+        }
+    }
+
+    @Override
+    public void write(long lo, long hi, ByteBuilder text, long count) {
+        byte[] arr = text.array();
+        int len = text.size();
+
+        // Cuts of the queries up to hi + 1: skip the primes below them
+        int pos = 0;
+        long before = 0;
+        int keep = -1;
+        for (; mNextCut < mCuts.length && mCuts[mNextCut] <= hi + 1;
+                mNextCut++) {
+            long cut = mCuts[mNextCut];
+            while (pos < len) {
+                int end = pos + 1;
+                long p = 0;
+                while (end < len && arr[end] != PrimeList.SEPARATOR) {
+                    p = p * 10 + (arr[end++] - '0');
+                }
+                if (p >= cut) break;
+                pos = end;
+                before++;
+            }
+            mCutBytes[mNextCut] = mBytes + pos;
+            mCutCounts[mNextCut] = mCount + before;
+            if (cut == mKeepNow) keep = pos;
+        }
+
+        // All of it is printed, without the leading separator of the text
+        int skip = mBytes == 0 ? 1 : 0;
+        if (len > skip) mOut.write(arr, skip, len - skip);
+
+        // Up to the largest n to come is spilled
+        if (mKeepNow > lo) {
+            spill(arr, mKeepNow > hi ? len : keep);
+        }
+        mBytes += len;
+        mCount += count;
+    }
+
+    private void spill(byte[] arr, int len) {
+        try {
+            if (mSpill == null) {
+                mSpillFile = File.createTempFile("primelist", ".txt");
+                mSpillFile.deleteOnExit();
+                mSpill = new RandomAccessFile(mSpillFile, "rw");
+            }
+            mSpill.seek(mSpill.length());
+            mSpill.write(arr, 0, len);
+        } catch (IOException e) {
+            throw new RuntimeException("Spilling the text failed", e);
+        }
+    }
+
+    /** Prints the text spilled up to <code>end</code> */
+    private void copySpill(long end) throws IOException {
+        if (end <= 1) return;
+        byte[] buf = new byte[COPY_BUFFER_SIZE];
+        // Without the leading separator
+        mSpill.seek(1);
+        for (long left = end - 1; left > 0; ) {
+            int n = mSpill.read(buf, 0, (int) Math.min(buf.length, left));
+            if (n < 0) throw new IOException("Spill file truncated");
+            mOut.write(buf, 0, n);
+            left -= n;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package it.gilvegliach;
+
+import static it.gilvegliach.Utils.checkCondArg;
+import static it.gilvegliach.Utils.checkNonNullArg;
+import static it.gilvegliach.Utils.closeQuietly;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sieves a range on several {@link SieveWorker}s, usually other JVMs. The
+ * range is split into shards of whole blocks, a few per worker so that
+ * faster ones take more. Each worker is fed by a thread of its own, a shard
+ * at a time: the counts are summed up, while the text of every shard goes
+ * to a temporary file and is copied to the output in shard order.
+ * <p>
+ * A shard failing on a worker, for a lost connection or a dead process, is
+ * put back for any worker to retry. So is one a worker doesn't answer in
+ * time, as when it hangs with the connection open: reads time out after
+ * the time allowed per block times the blocks of the shard, plus one.
+ * The worker is then dropped. A shard the worker answers with an error is
+ * retried elsewhere too, but the worker is kept. A worker failing
+ * {@link #MAX_ATTEMPTS} times in a row is given up on, and so is the whole
+ * job when a shard fails as many times per worker. The output is the same
+ * as {@link PrimeList#sieve(long, long, PrintStream)}.
+ */
+public class SieveCoordinator {
+    static final int MAX_ATTEMPTS = 3;
+    private static final int SHARDS_PER_WORKER = 4;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private static final int COPY_BUFFER_SIZE = 1 << 16;
+    static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 10000;
+
+    private final List<InetSocketAddress> mWorkers;
+    private final long mBlockTimeoutMillis;
+
+    public SieveCoordinator(List<InetSocketAddress> workers) {
+        this(workers, DEFAULT_BLOCK_TIMEOUT_MILLIS);
+    }
+
+    /** Allows workers <code>blockTimeoutMillis</code> per block of a shard */
+    public SieveCoordinator(List<InetSocketAddress> workers,
+            long blockTimeoutMillis) {
+        checkNonNullArg(workers, "workers must not be null");
+        checkCondArg(!workers.isEmpty(), "workers must not be empty");
+        checkCondArg(blockTimeoutMillis > 0, "blockTimeoutMillis must be > 0");
+        mWorkers = new ArrayList<InetSocketAddress>(workers);
+        mBlockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    /** Number of primes in <code>[lo..hi]</code> */
+    public long count(long lo, long hi) throws IOException {
+        return run(lo, hi, null);
+    }
+
+    /**
+     * Counts the primes in <code>[lo..hi]</code>, printing them comma
+     * separated on <code>out</code>, with a newline unless there are none.
+     */
+    public long print(long lo, long hi, PrintStream out) throws IOException {
+        checkNonNullArg(out, "out must not be null");
+        return run(lo, hi, out);
+    }
+
+    private long run(long lo, long hi, PrintStream out) throws IOException {
+        checkCondArg(0L <= lo && hi <= PrimeList.MAX_N,
+            "[lo, hi] must be in [0, 10^13]");
+        if (lo > hi || hi < 2) return 0;
+
+        Job job = new Job(split(lo, hi), out != null, mWorkers.size(),
+            mBlockTimeoutMillis);
+        for (InetSocketAddress worker : mWorkers) {
+            Thread thread = new Thread(new Feeder(job, worker),
+                "sieve-coordinator-" + worker);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Shards in order, as they're done
+        long count = 0;
+        boolean first = true;
+        try {
+            for (Shard shard : job.mShards) {
+                job.await(shard);
+                count += shard.mCount;
+                if (out != null && shard.mCount > 0) {
+                    copy(shard.mText, out, first);
+                    first = false;
+                }
+                if (shard.mText != null) shard.mText.delete();
+            }
+            if (out != null) {
+                if (count > 0) out.write(PrimeList.NEWLINE);
+                out.flush();
+            }
+        } finally {
+            job.cancel();
+        }
+        return count;
+    }
+
+    /** Shards of whole blocks, but the first and last may be partial */
+    private List<Shard> split(long lo, long hi) {
+        long start = PrimeList.blockStart(lo);
+        long nblocks = (hi - start) / PrimeList.BLOCK_SPAN + 1;
+        long nshards = Math.min(nblocks, SHARDS_PER_WORKER * mWorkers.size());
+        List<Shard> shards = new ArrayList<Shard>();
+        long from = lo;
+        for (long i = 1; i <= nshards; i++) {
+            long block = nblocks * i / nshards;
+            long to = i == nshards
+                ? hi : start + block * PrimeList.BLOCK_SPAN - 1;
+            shards.add(new Shard(shards.size(), from, to));
+            from = to + 1;
+        }
+        return shards;
+    }
+
+    /** Copies a shard text to the output, skipping the first separator */
+    private static void copy(File text, OutputStream out, boolean first)
+            throws IOException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(text);
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+            int skip = first ? 1 : 0;
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                out.write(buf, skip, n - skip);
+                skip = 0;
+            }
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /** A range sieved by a single worker */
+    static class Shard {
+        final int mIndex;
+        final long mLow;
+        final long mHigh;
+        int mAttempts;
+        boolean mDone;
+        long mCount;
+        File mText;
+
+        Shard(int index, long lo, long hi) {
+            mIndex = index;
+            mLow = lo;
+            mHigh = hi;
+        }
+    }
+
+    /** Shards to do, shared by the feeders, and how they went */
+    static class Job {
+        final List<Shard> mShards;
+        final boolean mPrint;
+        final long mBlockTimeoutMillis;
+        final LinkedBlockingQueue<Shard> mQueue =
+            new LinkedBlockingQueue<Shard>();
+        private final int mMaxAttempts;
+        private int mFeeders;
+        private IOException mFailure;
+        private boolean mCancelled;
+
+        Job(List<Shard> shards, boolean print, int feeders,
+                long blockTimeoutMillis) {
+            mShards = shards;
+            mPrint = print;
+            mBlockTimeoutMillis = blockTimeoutMillis;
+            mFeeders = feeders;
+            mMaxAttempts = MAX_ATTEMPTS * feeders;
+            mQueue.addAll(shards);
+        }
+
+        /** Gives up on a worker: fails the job if it was the last one */
+        synchronized void feederFailed(IOException e) {
+            if (--mFeeders == 0 && mFailure == null) {
+                mFailure = new IOException("All the workers failed", e);
+            }
+            notifyAll();
+        }
+
+        synchronized void done(Shard shard, long count, File text) {
+            // Too late: nobody is going to copy it, or delete it
+            if (mCancelled && text != null) text.delete();
+            shard.mCount = count;
+            shard.mText = text;
+            shard.mDone = true;
+            notifyAll();
+        }
+
+        /** Puts a shard back, unless it failed too many times */
+        synchronized void failed(Shard shard, IOException e) {
+            if (++shard.mAttempts >= mMaxAttempts) {
+                if (mFailure == null) {
+                    mFailure = new IOException("Shard [" + shard.mLow + ", "
+                        + shard.mHigh + "] failed " + mMaxAttempts + " times",
+                        e);
+                }
+                notifyAll();
+                return;
+            }
+            mQueue.add(shard);
+        }
+
+        synchronized void await(Shard shard) throws IOException {
+            boolean interrupted = false;
+            while (!shard.mDone && mFailure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            if (mFailure != null) throw mFailure;
+        }
+
+        /** Whether feeders should stop: all done, failed or cancelled */
+        synchronized boolean over() {
+            if (mCancelled || mFailure != null) return true;
+            for (Shard shard : mShards) {
+                if (!shard.mDone) return false;
+            }
+            return true;
+        }
+
+        /** Stops the feeders, deleting the texts left */
+        synchronized void cancel() {
+            mCancelled = true;
+            for (Shard shard : mShards) {
+                if (shard.mText != null) shard.mText.delete();
+            }
+        }
+    }
+
+    /** Feeds shards to a worker, over a connection kept across them */
+    static class Feeder implements Runnable {
+        private final Job mJob;
+        private final InetSocketAddress mWorker;
+        private Socket mSocket;
+        private DataInputStream mIn;
+        private DataOutputStream mOut;
+
+        Feeder(Job job, InetSocketAddress worker) {
+            mJob = job;
+            mWorker = worker;
+        }
+
+        @Override
+        public void run() {
+            int failures = 0;
+            try {
+                while (!mJob.over()) {
+                    Shard shard = mJob.mQueue.poll(RETRY_DELAY_MILLIS,
+                        TimeUnit.MILLISECONDS);
+                    if (shard == null) continue;
+                    try {
+                        send(shard);
+                        failures = 0;
+                    } catch (ShardRejected e) {
+                        // The worker is fine, and still connected
+                        mJob.failed(shard, e);
+                    } catch (IOException e) {
+                        disconnect();
+                        mJob.failed(shard, e);
+                        if (++failures >= MAX_ATTEMPTS) {
+                            mJob.feederFailed(e);
+                            return;
+                        }
+                        Thread.sleep(RETRY_DELAY_MILLIS * failures);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                disconnect();
+            }
+        }
+
+        private void send(Shard shard) throws IOException {
+            if (mSocket == null) connect();
+            // A hung worker times out, as one that hung up would fail
+            long blocks = (shard.mHigh - PrimeList.blockStart(shard.mLow))
+                / PrimeList.BLOCK_SPAN + 1;
+            long timeout = (blocks + 1) * mJob.mBlockTimeoutMillis;
+            mSocket.setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+            mOut.writeByte(mJob.mPrint ? SieveWorker.PRINT : SieveWorker.COUNT);
+            mOut.writeLong(shard.mLow);
+            mOut.writeLong(shard.mHigh);
+            mOut.flush();
+
+            File text = null;
+            OutputStream out = null;
+            boolean ok = false;
+            try {
+                if (mJob.mPrint) {
+                    text = File.createTempFile("shard" + shard.mIndex, ".txt");
+                    out = new BufferedOutputStream(new FileOutputStream(text));
+                    byte[] buf = new byte[COPY_BUFFER_SIZE];
+                    for (int len = mIn.readInt(); len != 0;
+                            len = mIn.readInt()) {
+                        if (len < 0) throw new IOException("Bad chunk: " + len);
+                        while (len > 0) {
+                            int n = Math.min(len, buf.length);
+                            mIn.readFully(buf, 0, n);
+                            out.write(buf, 0, n);
+                            len -= n;
+                        }
+                    }
+                    out.close();
+                }
+                byte status = mIn.readByte();
+                if (status == SieveWorker.ERROR) {
+                    throw new ShardRejected(mWorker + ": " + mIn.readUTF());
+                }
+                if (status != SieveWorker.OK) {
+                    throw new IOException("Bad status: " + status);
+                }
+                long count = mIn.readLong();
+                mJob.done(shard, count, text);
+                ok = true;
+            } finally {
+                closeQuietly(out);
+                if (!ok && text != null) text.delete();
+            }
+        }
+
+        private void connect() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(mWorker, CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                mIn = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                mOut = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+                mSocket = socket;
+            } finally {
+                if (mSocket == null) closeQuietly(socket);
+            }
+        }
+
+        private void disconnect() {
+            closeQuietly(mSocket);
+            mSocket = null;
+        }
+    }
+
+    /** A shard a worker answered with an error, rather than failing */
+    static class ShardRejected extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ShardRejected(String message) {
+            super(message);
+        }
+    }
+
+    /** Parses host:port, with IPv6 hosts in brackets, as [::1]:7001 */
+    static InetSocketAddress parseAddress(String s) {
+        int colon = s.lastIndexOf(':');
+        checkCondArg(colon > 0, "worker must be host:port, not " + s);
+        String host = s.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        int port = Integer.parseInt(s.substring(colon + 1));
+        checkCondArg(0 < port && port <= 0xFFFF, "Bad port in " + s);
+        return new InetSocketAddress(host, port);
+    }
+
+    public static void main(String[] args) throws IOException {
+        checkCondArg(args.length == 3 || args.length == 4,
+            "Usage: SieveCoordinator host:port[,host:port...] lo hi [--count]");
+        List<InetSocketAddress> workers = new ArrayList<InetSocketAddress>();
+        for (String s : args[0].split(",")) {
+            workers.add(parseAddress(s));
+        }
+        long lo = Long.parseLong(args[1]);
+        long hi = Long.parseLong(args[2]);
+        SieveCoordinator coordinator = new SieveCoordinator(workers);
+        if (args.length == 4) {
+            checkCondArg(args[3].equals("--count"), "Unknown flag " + args[3]);
+            System.out.println(coordinator.count(lo, hi));
+        } else {
+            coordinator.print(lo, hi, System.out);
+        }
+    }
+}
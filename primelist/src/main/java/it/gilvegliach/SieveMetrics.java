@@ -0,0 +1,274 @@
+package it.gilvegliach;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Instrumentation of {@link PrimeList}, off unless the system property
+ * <code>primelist.metrics</code> is true. Hooks are guarded by the constant
+ * {@link #ENABLED}, so when it's false the JIT drops them altogether and
+ * the sieve pays nothing. When it's true, the single instance is registered
+ * on the platform MBean server, see {@link SieveMetricsMXBean}.
+ * <p>
+ * Workers keep their own counters, found through a thread local. Idle time
+ * is worked out whenever the last run in progress ends, as the wall time
+ * since the first of them started minus the time spent on blocks
+ * meanwhile: runs overlapping each other count once.
+ */
+final class SieveMetrics implements SieveMetricsMXBean {
+    static final boolean ENABLED = Boolean.getBoolean("primelist.metrics");
+    static final String NAME = "it.gilvegliach:type=SieveMetrics";
+    private static final com.sun.management.ThreadMXBean THREADS =
+        ENABLED ? threads() : null;
+    static final SieveMetrics INSTANCE = ENABLED ? register() : null;
+
+    private final AtomicLong mInitialSieves = new AtomicLong();
+    private final AtomicLong mInitialSieveNanos = new AtomicLong();
+    private final AtomicLong mRuns = new AtomicLong();
+    private final AtomicLong mRunNanos = new AtomicLong();
+    private final AtomicLong mBlocks = new AtomicLong();
+    private final AtomicLong mSegments = new AtomicLong();
+    private final AtomicLong mAllocated = new AtomicLong();
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mQueueWaitNanos = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mOutputNanos = new AtomicLong();
+    private int mActiveRuns;            // guarded by this
+    private long mActiveSince;          // guarded by this
+
+    private final ConcurrentHashMap<String, Worker> mWorkers =
+        new ConcurrentHashMap<String, Worker>();
+    private final ThreadLocal<Worker> mWorker = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            Worker worker = new Worker();
+            mWorkers.put(Thread.currentThread().getName(), worker);
+            return worker;
+        }
+    };
+
+    private SieveMetrics() {
+    }
+
+    private static SieveMetrics register() {
+        SieveMetrics metrics = new SieveMetrics();
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(metrics, new ObjectName(NAME));
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register " + NAME, e);
+        }
+        return metrics;
+    }
+
+    /** Allocation counters of HotSpot, or null elsewhere */
+    private static com.sun.management.ThreadMXBean threads() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean hotspot =
+            (com.sun.management.ThreadMXBean) threads;
+        if (!hotspot.isThreadAllocatedMemorySupported()) return null;
+        hotspot.setThreadAllocatedMemoryEnabled(true);
+        return hotspot;
+    }
+
+    /** Bytes allocated so far by the current thread, or 0 if unknown */
+    static long allocatedBytes() {
+        if (THREADS == null) return 0;
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    void initialSieved(long startNanos) {
+        mInitialSieves.incrementAndGet();
+        mInitialSieveNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+
+    /** On the worker, once it's done with a block */
+    void blockSieved(long startNanos, long startAllocated, int segments) {
+        long busy = System.nanoTime() - startNanos;
+        Worker worker = mWorker.get();
+        worker.mBusy.addAndGet(busy);
+        worker.mRunBusy.addAndGet(busy);
+        mBlocks.incrementAndGet();
+        mSegments.addAndGet(segments);
+        mAllocated.addAndGet(allocatedBytes() - startAllocated);
+    }
+
+    /** When a run starts, returning the time it started at */
+    synchronized long runStarted() {
+        long now = System.nanoTime();
+        if (mActiveRuns++ == 0) mActiveSince = now;
+        return now;
+    }
+
+    synchronized void runEnded(long startNanos) {
+        long now = System.nanoTime();
+        mRuns.incrementAndGet();
+        mRunNanos.addAndGet(now - startNanos);
+        if (--mActiveRuns > 0) return;
+        long active = now - mActiveSince;
+        for (Worker worker : mWorkers.values()) {
+            long busy = worker.mRunBusy.getAndSet(0);
+            worker.mIdle.addAndGet(Math.max(0, active - busy));
+        }
+    }
+
+    /** On the output, once it got a block, with <code>depth</code> in flight */
+    void blockTaken(long startNanos, int depth) {
+        mQueueWaitNanos.addAndGet(System.nanoTime() - startNanos);
+        mQueueDepth.set(depth);
+        int max;
+        while ((max = mMaxQueueDepth.get()) < depth) {
+            if (mMaxQueueDepth.compareAndSet(max, depth)) break;
+        }
+    }
+
+    void written(long startNanos, long bytes) {
+        mOutputNanos.addAndGet(System.nanoTime() - startNanos);
+        mBytesWritten.addAndGet(bytes);
+    }
+
+    @Override
+    public long getInitialSieves() {
+        return mInitialSieves.get();
+    }
+
+    @Override
+    public long getInitialSieveNanos() {
+        return mInitialSieveNanos.get();
+    }
+
+    @Override
+    public long getRuns() {
+        return mRuns.get();
+    }
+
+    @Override
+    public long getRunNanos() {
+        return mRunNanos.get();
+    }
+
+    @Override
+    public long getBlocks() {
+        return mBlocks.get();
+    }
+
+    @Override
+    public long getSegments() {
+        return mSegments.get();
+    }
+
+    @Override
+    public double getSegmentsPerSecond() {
+        long nanos = mRunNanos.get();
+        return nanos == 0 ? 0 : mSegments.get() * 1e9 / nanos;
+    }
+
+    @Override
+    public Map<String, Long> getWorkerBusyNanos() {
+        Map<String, Long> busy = new TreeMap<String, Long>();
+        for (Map.Entry<String, Worker> e : mWorkers.entrySet()) {
+            busy.put(e.getKey(), e.getValue().mBusy.get());
+        }
+        return busy;
+    }
+
+    @Override
+    public Map<String, Long> getWorkerIdleNanos() {
+        Map<String, Long> idle = new TreeMap<String, Long>();
+        for (Map.Entry<String, Worker> e : mWorkers.entrySet()) {
+            idle.put(e.getKey(), e.getValue().mIdle.get());
+        }
+        return idle;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return PrimeList.MAX_TASKS_IN_MEMORY;
+    }
+
+    @Override
+    public long getQueueWaitNanos() {
+        return mQueueWaitNanos.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    @Override
+    public long getOutputNanos() {
+        return mOutputNanos.get();
+    }
+
+    @Override
+    public long getAllocatedBytesPerSegment() {
+        if (THREADS == null) return -1;
+        long segments = mSegments.get();
+        return segments == 0 ? 0 : mAllocated.get() / segments;
+    }
+
+    @Override
+    public void reset() {
+        AtomicLong[] counters = { mInitialSieves, mInitialSieveNanos, mRuns,
+            mRunNanos, mBlocks, mSegments, mAllocated, mQueueWaitNanos,
+            mBytesWritten, mOutputNanos };
+        for (AtomicLong counter : counters) {
+            counter.set(0);
+        }
+        mQueueDepth.set(0);
+        mMaxQueueDepth.set(0);
+        for (Worker worker : mWorkers.values()) {
+            worker.mBusy.set(0);
+            worker.mRunBusy.set(0);
+            worker.mIdle.set(0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "initial sieves: %d in %.3f s%n" +
+            "runs: %d in %.3f s, %d blocks, %d segments, %.0f segments/s%n" +
+            "queue: depth %d, max %d of %d, output waited %.3f s%n" +
+            "output: %d bytes in %.3f s%n" +
+            "allocated per segment: %d bytes%n" +
+            "worker busy ns: %s%n" +
+            "worker idle ns: %s",
+            getInitialSieves(), getInitialSieveNanos() / 1e9,
+            getRuns(), getRunNanos() / 1e9, getBlocks(), getSegments(),
+            getSegmentsPerSecond(),
+            getQueueDepth(), getMaxQueueDepth(), getQueueCapacity(),
+            getQueueWaitNanos() / 1e9,
+            getBytesWritten(), getOutputNanos() / 1e9,
+            getAllocatedBytesPerSegment(),
+            getWorkerBusyNanos(), getWorkerIdleNanos());
+    }
+
+    /** Counters of a worker thread */
+    static class Worker {
+        final AtomicLong mBusy = new AtomicLong();
+        final AtomicLong mRunBusy = new AtomicLong();   // since runs started
+        final AtomicLong mIdle = new AtomicLong();
+    }
+}
@@ -0,0 +1,45 @@
+package it.gilvegliach;
+
+import java.util.Map;
+
+/**
+ * Counters and timers of the sieve, published as
+ * <code>it.gilvegliach:type=SieveMetrics</code> when the system property
+ * <code>primelist.metrics</code> is true. Times are in nanoseconds.
+ */
+public interface SieveMetricsMXBean {
+    /** Sieves of the base primes, and the time spent in them */
+    long getInitialSieves();
+    long getInitialSieveNanos();
+
+    /** Parallel sieves of a range, and their wall time */
+    long getRuns();
+    long getRunNanos();
+
+    long getBlocks();
+    long getSegments();
+    /** Segments over the wall time of the runs */
+    double getSegmentsPerSecond();
+
+    /** Time each worker spent sieving blocks, by thread name */
+    Map<String, Long> getWorkerBusyNanos();
+    /** Time each worker spent doing nothing during the runs */
+    Map<String, Long> getWorkerIdleNanos();
+
+    /** Blocks running or waiting for the output, at the last block out */
+    int getQueueDepth();
+    int getMaxQueueDepth();
+    /** Bound of the blocks in memory, at which the queue is full */
+    int getQueueCapacity();
+    /** Time the output waited for the next block to be sieved */
+    long getQueueWaitNanos();
+
+    /** Bytes of text handed to the output, and the time it took */
+    long getBytesWritten();
+    long getOutputNanos();
+
+    /** Heap allocated by the workers per segment, -1 if not supported */
+    long getAllocatedBytesPerSegment();
+
+    void reset();
+}
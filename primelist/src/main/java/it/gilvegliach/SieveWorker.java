@@ -0,0 +1,192 @@
+package it.gilvegliach;
+
+import static it.gilvegliach.Utils.checkCondArg;
+import static it.gilvegliach.Utils.closeQuietly;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Sieves shards of a range for a {@link SieveCoordinator}, on all the
+ * workers of {@link PrimeList}. Listens on the loopback interface unless
+ * given another address to bind: there's no authentication, so only bind
+ * to interfaces of a trusted network.
+ * <p>
+ * The protocol is a request per shard, on a connection kept open across
+ * shards: an op byte then lo and hi, as longs. {@link #PRINT} is answered
+ * with the text of the primes, each after a separator, in chunks of an int
+ * length followed by the bytes, then a 0 length. Then both ops end with a
+ * status: {@link #OK} and the count, or {@link #ERROR} and a message, as
+ * modified UTF-8, if the shard is rejected or its sieve fails. Either way
+ * the connection goes on, it's closed only on errors of the connection
+ * itself, so that a rejected shard is told apart from a dead worker.
+ */
+public class SieveWorker implements Closeable {
+    static final byte COUNT = 1;
+    static final byte PRINT = 2;
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private final ServerSocket mServer;
+
+    /** Listens on <code>port</code> of loopback, any free one if it's 0 */
+    public SieveWorker(int port) throws IOException {
+        this(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Listens on <code>port</code> of <code>bind</code>, any free one if
+     * it's 0. A null or wildcard address listens on all the interfaces.
+     */
+    public SieveWorker(InetAddress bind, int port) throws IOException {
+        checkCondArg(0 <= port && port <= 0xFFFF, "port must be in [0, 65535]");
+        mServer = new ServerSocket(port, 50, bind);
+    }
+
+    public int port() {
+        return mServer.getLocalPort();
+    }
+
+    /** Serves connections, each on a thread of its own, until closed */
+    public void serve() throws IOException {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServer.accept();
+            } catch (SocketException e) {
+                if (mServer.isClosed()) return;
+                throw e;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handle(socket);
+                    } catch (IOException ignored) {
+                        // Lost the coordinator: it retries elsewhere
+                    } finally {
+                        closeQuietly(socket);
+                    }
+                }
+            }, "sieve-worker-" + socket.getPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Serves on a daemon thread, returning straight away */
+    public void start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serve();
+                } catch (IOException e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+        }, "sieve-worker-" + port());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServer.close();
+    }
+
+    private static void handle(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        while (true) {
+            byte op;
+            try {
+                op = in.readByte();
+            } catch (EOFException e) {
+                return;     // done with us
+            }
+            long lo = in.readLong();
+            long hi = in.readLong();
+            String error = null;
+            long count = 0;
+            if (op != COUNT && op != PRINT) {
+                error = "Unknown op: " + op;
+            } else if (lo < 0 || hi > PrimeList.MAX_N) {
+                error = "Shard out of range: " + lo + ", " + hi;
+            } else {
+                try {
+                    count = sieve(op, lo, hi, out);
+                } catch (ChunkFailed e) {
+                    throw e.getCause();
+                } catch (RuntimeException e) {
+                    error = "Sieve failed: " + e;
+                }
+            }
+            if (op == PRINT) out.writeInt(0);
+            if (error != null) {
+                out.writeByte(ERROR);
+                out.writeUTF(error);
+            } else {
+                out.writeByte(OK);
+                out.writeLong(count);
+            }
+            out.flush();
+        }
+    }
+
+    private static long sieve(byte op, long lo, long hi,
+            final DataOutputStream out) {
+        if (op == COUNT) return PrimeList.sieve(lo, hi, null);
+        if (hi < 2 || lo > hi) return 0;
+        return PrimeList.sieveRange(lo, hi, new PrimeList.BlockSink() {
+            @Override
+            public void write(long lo, long hi, ByteBuilder text, long count) {
+                if (text.size() == 0) return;
+                try {
+                    out.writeInt(text.size());
+                    text.writeTo(out);
+                } catch (IOException e) {
+                    throw new ChunkFailed(e);
+                }
+            }
+        });
+    }
+
+    /** Carries an IOException of the connection through the sieve */
+    static class ChunkFailed extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ChunkFailed(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        checkCondArg(args.length <= 2, "Usage: SieveWorker [port [bind address]]");
+        int port = args.length >= 1 ? Integer.parseInt(args[0]) : 0;
+        InetAddress bind = args.length == 2
+            ? InetAddress.getByName(args[1]) : InetAddress.getLoopbackAddress();
+        SieveWorker worker = new SieveWorker(bind, port);
+        // The coordinator, or whoever started us, reads the port from here
+        System.out.println("Listening on " + worker.port());
+        System.out.flush();
+        worker.serve();
+    }
+}
@@ -0,0 +1,133 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import it.gilvegliach.PrimeList.BitArray;
+
+public class BitArrayTest {
+    // Not a whole number of words
+    private static final int SIZE = 5 * 64 + 17;
+
+    @Test
+    public void setAndClearAtWordBoundaries() {
+        BitArray arr = new BitArray(SIZE);
+        int[] bits = { 0, 1, 62, 63, 64, 65, 127, 128, SIZE - 1 };
+        for (int i : bits) {
+            arr.set(i);
+        }
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals(String.valueOf(i), contains(bits, i) ? 1 : 0,
+                arr.get(i));
+        }
+        assertEquals(1L | 2L | 1L << 62 | 1L << 63, arr.word(0));
+        assertEquals(bits.length, arr.cardinality());
+
+        // Only the bit cleared, not the others of its word
+        arr.clear(63);
+        arr.clear(64);
+        assertEquals(0, arr.get(63));
+        assertEquals(0, arr.get(64));
+        assertEquals(1, arr.get(62));
+        assertEquals(1, arr.get(65));
+        assertEquals(bits.length - 2, arr.cardinality());
+        assertEquals(SIZE, arr.size());
+    }
+
+    @Test
+    public void countMatchesBitByBit() {
+        BitArray arr = random(42);
+        int[] edges = { 0, 1, 63, 64, 65, 127, 128, 129, 200, SIZE - 1, SIZE };
+        for (int from : edges) {
+            for (int to : edges) {
+                int expected = 0;
+                for (int i = from; i < to; i++) {
+                    expected += arr.get(i);
+                }
+                assertEquals(from + ", " + to, expected, arr.count(from, to));
+            }
+        }
+        assertEquals(arr.count(0, SIZE), arr.cardinality());
+    }
+
+    @Test
+    public void nextClearBitAcrossWords() {
+        BitArray arr = new BitArray(SIZE);
+        for (int i = 0; i < 130; i++) {
+            arr.set(i);
+        }
+        assertEquals(130, arr.nextClearBit(0, SIZE));
+        assertEquals(130, arr.nextClearBit(64, SIZE));
+        assertEquals(131, arr.nextClearBit(131, SIZE));
+        // All set up to the end of the range
+        assertEquals(128, arr.nextClearBit(5, 128));
+        assertEquals(64, arr.nextClearBit(63, 64));
+        assertEquals(7, arr.nextClearBit(7, 7));
+
+        BitArray random = random(7);
+        for (int from = 0; from < SIZE; from++) {
+            int expected = from;
+            while (expected < SIZE && random.get(expected) == 1) expected++;
+            assertEquals(expected, random.nextClearBit(from, SIZE));
+        }
+    }
+
+    @Test
+    public void fillRepeatsPatternFromAnyWord() {
+        long[] pattern = { 1, 2, 3 };
+        for (int from = 0; from < pattern.length; from++) {
+            BitArray arr = random(from);
+            arr.fill(pattern, from);
+            for (int w = 0; w < 6; w++) {
+                assertEquals(pattern[(from + w) % pattern.length], arr.word(w));
+            }
+        }
+    }
+
+    @Test
+    public void stampOrsPatternFromAnyWord() {
+        // Longer than the array, so it never wraps around
+        long[] pattern = new long[7];
+        for (int w = 0; w < pattern.length; w++) {
+            pattern[w] = 1L << (w * 9) | 1L << 63;
+        }
+        for (int from = 0; from < pattern.length; from++) {
+            BitArray arr = random(from);
+            long[] before = new long[6];
+            for (int w = 0; w < 6; w++) {
+                before[w] = arr.word(w);
+            }
+            arr.stamp(pattern, from);
+            for (int w = 0; w < 6; w++) {
+                assertEquals(before[w] | pattern[(from + w) % pattern.length],
+                    arr.word(w));
+            }
+        }
+        // Wrapping around a short one
+        BitArray arr = new BitArray(SIZE);
+        arr.stamp(new long[] { 1, 2 }, 1);
+        assertEquals(2, arr.word(0));
+        assertEquals(1, arr.word(1));
+        assertEquals(2, arr.word(4));
+        assertEquals(1, arr.word(5));
+    }
+
+    private static BitArray random(long seed) {
+        Random random = new Random(seed);
+        BitArray arr = new BitArray(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            if (random.nextBoolean()) arr.set(i);
+        }
+        return arr;
+    }
+
+    private static boolean contains(int[] a, int x) {
+        for (int y : a) {
+            if (y == x) return true;
+        }
+        return false;
+    }
+}
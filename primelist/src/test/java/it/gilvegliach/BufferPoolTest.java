@@ -0,0 +1,63 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.junit.Test;
+
+import it.gilvegliach.PrimeList.SegmentSieve;
+
+public class BufferPoolTest {
+    // Past the base primes, so that every buffer comes from the pool
+    private static final long LO = 1000000000000L;
+    private static final long HI = LO + 20 * PrimeList.BLOCK_SPAN;
+
+    @Test
+    public void buffersAreReusedAcrossCalls() {
+        // About 1 mb of gaps per block: small enough to be pooled
+        Set<ByteBuilder> first = sieve(PrimeFormat.GAPS);
+        Set<ByteBuilder> second = sieve(PrimeFormat.GAPS);
+        assertTrue(first.containsAll(second));
+    }
+
+    @Test
+    public void largeBuffersAreNotKept() {
+        // About 15 mb of text per block: reused within the call only
+        Set<ByteBuilder> large = sieve(PrimeFormat.TEXT);
+        Set<ByteBuilder> next = sieve(PrimeFormat.GAPS);
+        next.retainAll(large);
+        assertTrue(next.isEmpty());
+        // Fewer buffers than blocks, though
+        assertTrue(large.size() <= PrimeList.MAX_TASKS_IN_MEMORY);
+    }
+
+    @Test
+    public void sievesAreReusedAcrossCalls() {
+        int[] primes = PrimeList.sieveInitial(PrimeList.isqrt(HI));
+        int[] others = PrimeList.sieveInitial(PrimeList.isqrt(LO));
+        SegmentSieve sieve = PrimeList.segmentSieve(primes);
+        assertSame(sieve, PrimeList.segmentSieve(primes));
+        // Reset to the other primes, rather than replaced
+        assertSame(sieve, PrimeList.segmentSieve(others));
+        assertSame(others, sieve.mPrimes);
+        assertFalse(sieve.mPrimes == primes);
+    }
+
+    /** The buffers the blocks of [LO..HI] are handed over in */
+    private static Set<ByteBuilder> sieve(int encoding) {
+        final Set<ByteBuilder> bufs = Collections.newSetFromMap(
+            new IdentityHashMap<ByteBuilder, Boolean>());
+        PrimeList.sieveRange(LO, HI, new PrimeList.BlockSink() {
+            @Override
+            public void write(long lo, long hi, ByteBuilder bytes, long count) {
+                bufs.add(bytes);
+            }
+        }, encoding);
+        return bufs;
+    }
+}
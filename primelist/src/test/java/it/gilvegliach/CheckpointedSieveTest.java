@@ -0,0 +1,155 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CheckpointedSieveTest {
+    // A few blocks
+    private static final long LO = 1000;
+    private static final long HI = 130000000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void runMatchesSieve() throws IOException {
+        File expected = expected(LO, HI);
+        File output = new File(mFolder.getRoot(), "primes.txt");
+        CheckpointedSieve sieve = new CheckpointedSieve(output);
+        long count = sieve.run(LO, HI, false);
+        assertEquals(PrimeList.sieve(LO, HI, null), count);
+        assertSameContent(expected, output);
+
+        // Done: resuming does nothing
+        assertEquals(count, sieve.run(LO, HI, true));
+        assertSameContent(expected, output);
+    }
+
+    @Test
+    public void resumeAfterStop() throws Exception {
+        File expected = expected(LO, HI);
+        final File output = new File(mFolder.getRoot(), "primes.txt");
+        final File state = new File(mFolder.getRoot(), "primes.state");
+        final CheckpointedSieve sieve = new CheckpointedSieve(output, state, 0);
+
+        final AtomicReference<Exception> thrown = new AtomicReference<Exception>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sieve.run(LO, HI, false);
+                } catch (Exception e) {
+                    thrown.set(e);
+                }
+            }
+        });
+        thread.start();
+        // Stops past the first block
+        while (!state.exists() || next(state) <= LO) {
+            Thread.sleep(1);
+        }
+        thread.interrupt();
+        thread.join();
+        assertTrue(String.valueOf(thrown.get()),
+            thrown.get() instanceof InterruptedIOException);
+        long stopped = next(state);
+        assertTrue(LO < stopped && stopped <= HI);
+
+        // Bytes written after the checkpoint, as when dying mid-block
+        FileOutputStream out = new FileOutputStream(output, true);
+        try {
+            out.write(",123,45".getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+
+        assertEquals(PrimeList.sieve(LO, HI, null), sieve.run(LO, HI, true));
+        assertSameContent(expected, output);
+    }
+
+    @Test
+    public void resumeWithoutStateStartsOver() throws IOException {
+        File expected = expected(0, 1000);
+        File output = new File(mFolder.getRoot(), "primes.txt");
+        FileOutputStream out = new FileOutputStream(output);
+        try {
+            out.write("garbage".getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        assertEquals(168, new CheckpointedSieve(output).run(0, 1000, true));
+        assertSameContent(expected, output);
+    }
+
+    @Test(expected = IOException.class)
+    public void resumeOtherRange() throws IOException {
+        File output = new File(mFolder.getRoot(), "primes.txt");
+        CheckpointedSieve sieve = new CheckpointedSieve(output);
+        sieve.run(0, 1000, false);
+        sieve.run(0, 2000, true);
+    }
+
+    private File expected(long lo, long hi) throws IOException {
+        File file = mFolder.newFile();
+        PrintStream out = new PrintStream(new FileOutputStream(file));
+        try {
+            PrimeList.sieve(lo, hi, out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static long next(File state) throws IOException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(state);
+        try {
+            props.load(in);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        } finally {
+            in.close();
+        }
+        String next = props.getProperty("next");
+        return next == null ? -1 : Long.parseLong(next);
+    }
+
+    private static void assertSameContent(File expected, File actual)
+            throws IOException {
+        assertEquals(expected.length(), actual.length());
+        InputStream a = new FileInputStream(expected);
+        InputStream b = new FileInputStream(actual);
+        try {
+            byte[] bufA = new byte[1 << 16];
+            byte[] bufB = new byte[1 << 16];
+            for (int n = a.read(bufA); n > 0; n = a.read(bufA)) {
+                int m = 0;
+                while (m < n) {
+                    int r = b.read(bufB, m, n - m);
+                    if (r < 0) fail("Output too short");
+                    m += r;
+                }
+                assertTrue(Arrays.equals(bufA, bufB));
+            }
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class PrimeCacheTest {
+    @Test
+    public void piSmall() {
+        PrimeCache cache = new PrimeCache(0);
+        assertEquals(0, cache.pi(1));
+        assertEquals(1, cache.pi(2));
+        assertEquals(3, cache.pi(6));
+        assertEquals(4, cache.pi(7));
+        assertEquals(25, cache.pi(100));
+    }
+
+    @Test
+    public void piExtendsOnDemand() {
+        PrimeCache cache = new PrimeCache(1 << 24);
+        long[] xs = { 123456789, 1000000, 234567890, 30 * (1 << 20) };
+        for (long x : xs) {
+            assertEquals(PrimeCounter.pi(x), cache.pi(x));
+            assertTrue(cache.bound() > x);
+        }
+        // Never shrinks
+        assertTrue(cache.bound() > 234567890);
+    }
+
+    @Test
+    public void evictedChunksAreSievedAgain() {
+        // Room for a single chunk: every query hops to another one
+        PrimeCache cache = new PrimeCache(0);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(PrimeCounter.pi(99999999), cache.pi(99999999));
+            assertEquals(PrimeCounter.pi(1000000), cache.pi(1000000));
+        }
+        assertTrue(cache.isPrime(99999989));
+        assertFalse(cache.isPrime(99999991));
+    }
+
+    @Test
+    public void pastLimit() {
+        // A single chunk: past it, answers without growing the cache
+        long limit = 30 * (1 << 20);
+        PrimeCache cache = new PrimeCache(1 << 24, limit - 1);
+        assertEquals(limit, cache.limit());
+        assertEquals(PrimeCounter.pi(123456789), cache.pi(123456789));
+        assertEquals(0, cache.bound());
+        assertEquals(PrimeList.sieve(limit - 1000, limit + 1000, null),
+            cache.count(limit - 1000, limit + 1000));
+        assertTrue(cache.isPrime(99999989));
+        assertFalse(cache.isPrime(99999991));
+        assertEquals(99999989, cache.nextPrime(99999971));
+        // From the last prime of the chunk to the first past it
+        PrimeIterator it = PrimeList.iterator(limit - 1000, limit + 1000);
+        long last = 0;
+        long first = 0;
+        while (it.hasNext()) {
+            long p = it.nextPrime();
+            if (p < limit) last = p;
+            else if (first == 0) first = p;
+        }
+        assertEquals(last, cache.nextPrime(last - 1));
+        assertEquals(first, cache.nextPrime(last));
+        assertEquals(limit, cache.bound());
+        assertEquals(PrimeCounter.pi(limit - 1), cache.pi(limit - 1));
+        assertEquals(PrimeCounter.pi(1000000000), cache.pi(1000000000));
+        assertEquals(limit, cache.bound());
+    }
+
+    @Test
+    public void matchesIterator() {
+        // Across the boundary between the first two chunks
+        long lo = 30 * (1 << 20) - 1000000;
+        long hi = 30 * (1 << 20) + 1000000;
+        PrimeCache cache = new PrimeCache(1 << 24);
+        PrimeIterator it = PrimeList.iterator(lo, hi);
+        long count = 0;
+        long prev = cache.nextPrime(lo - 1);
+        for (long x = lo; x <= hi; x++) {
+            boolean prime = it.hasNext() && x == prev;
+            assertEquals(prime, cache.isPrime(x));
+            if (prime) {
+                assertEquals(prev, it.nextPrime());
+                count++;
+                prev = cache.nextPrime(x);
+            }
+        }
+        assertFalse(it.hasNext());
+        assertEquals(count, cache.count(lo, hi));
+    }
+
+    @Test
+    public void chunksUsedLatelyAreKept() {
+        // Room for two: the one read since it was added gets a second chance
+        PrimeCache.Chunks chunks = new PrimeCache.Chunks(4, 2);
+        PrimeCache.Chunk zero = new PrimeCache.Chunk(new long[8]);
+        PrimeCache.Chunk one = new PrimeCache.Chunk(new long[8]);
+        assertSame(zero, chunks.put(0, zero));
+        assertSame(one, chunks.put(1, one));
+        assertSame(zero, chunks.put(0, new PrimeCache.Chunk(new long[8])));
+        assertSame(zero, chunks.get(0));
+        chunks.put(2, new PrimeCache.Chunk(new long[8]));
+        assertSame(zero, chunks.get(0));
+        assertNull(chunks.get(1));
+        // Read again, 0 is spared once more: 2, never read, goes
+        chunks.put(3, new PrimeCache.Chunk(new long[8]));
+        assertNull(chunks.get(2));
+        assertSame(zero, chunks.get(0));
+    }
+
+    @Test
+    public void concurrentQueries() throws Exception {
+        final PrimeCache cache = new PrimeCache(1 << 22);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            final long[] xs = new long[16];
+            for (int i = 0; i < xs.length; i++) {
+                xs[i] = 1000003L + 20000000L * ((i * 7) % xs.length);
+                final long x = xs[i];
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return cache.pi(x);
+                    }
+                }));
+            }
+            for (int i = 0; i < xs.length; i++) {
+                long expected = PrimeCounter.pi(xs[i]);
+                assertEquals(expected, (long) results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void piTooLarge() {
+        new PrimeCache(0).pi(PrimeList.MAX_N + 1);
+    }
+}
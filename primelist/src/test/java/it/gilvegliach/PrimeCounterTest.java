@@ -0,0 +1,47 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class PrimeCounterTest {
+    @Test(expected = IllegalArgumentException.class)
+    public void piNegative() {
+        PrimeCounter.pi(-1);
+    }
+
+    @Test
+    public void piSmall() {
+        assertEquals(0, PrimeCounter.pi(1));
+        assertEquals(1, PrimeCounter.pi(2));
+        assertEquals(25, PrimeCounter.pi(100));
+    }
+
+    @Test
+    public void piMatchesIterator() {
+        long[] xs = { 1000000, 1000003, 20000000, 123456789 };
+        for (long x : xs) {
+            long count = 0;
+            PrimeIterator it = PrimeList.iterator(x + 1);
+            while (it.hasNext()) {
+                it.nextPrime();
+                count++;
+            }
+            assertEquals(count, PrimeCounter.pi(x));
+        }
+    }
+
+    // Speed test: give it 5 seconds
+    @Test(timeout = 5000)
+    public void piOneTrillion() {
+        // Result found with wolfram alpha, see:
+        // http://www.wolframalpha.com/input/?i=PI%281000000000000%29
+        assertEquals(37607912018L, PrimeCounter.pi(1000000000000L));
+    }
+
+    @Test
+    public void sieveCountsThroughPrimeCounter() {
+        // Wide enough to be counted, not sieved
+        assertEquals(203280221, PrimeList.sieve(4294967294L, false));
+    }
+}
@@ -1,13 +1,24 @@
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import it.gilvegliach.PrimeIterator;
 import it.gilvegliach.PrimeList;
 
 public class PrimeListTest {
@@ -39,6 +50,94 @@ public class PrimeListTest {
         }
     }
     
+    @Test
+    public void sieveOutputMatchesIterator() {
+        // Above the large n threshold, so the output goes through the workers
+        long n = 3000000;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        long count = PrimeList.sieve(n, new PrintStream(baos));
+        
+        StringBuilder sb = new StringBuilder();
+        PrimeIterator it = PrimeList.iterator(n);
+        sb.append(it.nextPrime());
+        while (it.hasNext()) {
+            sb.append(',').append(it.nextPrime());
+        }
+        sb.append('\n');
+        assertEquals(sb.toString(), baos.toString());
+        assertEquals(216816, count);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void sieveTooLarge() {
+        PrimeList.sieve(PrimeList.MAX_N + 1, false);
+    }
+    
+    @Test
+    public void sieveRangeOutput() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        long count = PrimeList.sieve(4294967000L, 4294967300L, 
+            new PrintStream(baos));
+        assertEquals(
+            "4294967029,4294967087,4294967111,4294967143,4294967161," +
+            "4294967189,4294967197,4294967231,4294967279,4294967291\n",
+            baos.toString());
+        assertEquals(10, count);
+    }
+    
+    @Test
+    public void sieveBatchMatchesSingleQueries() {
+        // Unsorted, repeated, below 3, past the large n threshold and around the
+        // end of the first block
+        long[] ns = { 3000000, 100, 0, 40000000, 3, 3000000, 31457281, 2,
+            31457280, 1000, 35000000, 40000000, 1 };
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        long[] counts = PrimeList.sieve(ns, new PrintStream(batch));
+
+        ByteArrayOutputStream single = new ByteArrayOutputStream();
+        for (int i = 0; i < ns.length; i++) {
+            long count = PrimeList.sieve(ns[i], new PrintStream(single));
+            assertEquals(count, counts[i]);
+            assertEquals(count, PrimeList.sieve(new long[] { ns[i] }, null)[0]);
+        }
+        assertEquals(single.toString(), batch.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sieveBatchTooLarge() {
+        PrimeList.sieve(new long[] { 100, PrimeList.MAX_N + 1 }, null);
+    }
+
+    @Test
+    public void sieveRangeNoPrimes() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        long count = PrimeList.sieve(24, 28, new PrintStream(baos));
+        assertEquals(0, count);
+        assertEquals("", baos.toString());
+    }
+    
+    @Test
+    public void sieveRangeHighOffset() {
+        // Checked against a plain sieve of the window
+        long lo = 1000000000000L;
+        long count = PrimeList.sieve(lo, lo + 20000000, null);
+        assertEquals(723063, count);
+    }
+    
+    @Test
+    public void iteratorRangeMatchesSieve() {
+        long lo = 123456789012L;
+        long hi = lo + 3000000;
+        long count = 0;
+        PrimeIterator it = PrimeList.iterator(lo, hi);
+        while (it.hasNext()) {
+            long p = it.nextPrime();
+            assertTrue(lo <= p && p <= hi);
+            count++;
+        }
+        assertEquals(117306, count);
+    }
+    
     // Speed test: give it 5 seconds
     @Test(timeout = 5000)
     public void sieveOneHundredThousand() {
@@ -48,6 +147,65 @@ public class PrimeListTest {
         assertEquals(9592, count);
     }
     
+    @Test
+    public void iteratorEmpty() {
+        PrimeIterator it = PrimeList.iterator(2);
+        assertFalse(it.hasNext());
+    }
+    
+    @Test
+    public void iteratorAsIterator() {
+        Iterator<Long> it = PrimeList.iterator(30);
+        List<Long> primes = new ArrayList<Long>();
+        while (it.hasNext()) {
+            primes.add(it.next());
+        }
+        assertEquals(Arrays.asList(2L, 3L, 5L, 7L, 11L, 13L, 17L, 19L, 23L,
+            29L), primes);
+        try {
+            it.next();
+            fail();
+        } catch (NoSuchElementException e) {
+            // Expected
+        }
+    }
+    
+    @Test(expected = UnsupportedOperationException.class)
+    public void iteratorRemove() {
+        PrimeIterator it = PrimeList.iterator(30);
+        it.nextPrime();
+        it.remove();
+    }
+    
+    @Test
+    public void iteratorOneHundred() {
+        StringBuilder sb = new StringBuilder();
+        PrimeIterator it = PrimeList.iterator(100);
+        while (it.hasNext()) {
+            sb.append(it.nextPrime()).append(',');
+        }
+        assertEquals(
+            "2,3,5,7,11,13,17,19,23,29,31,37,41,43,47,53,59,61,67,71,73,79,83,89,97,",
+            sb.toString());
+    }
+    
+    @Test
+    public void iteratorMatchesSieveOnSegments() {
+        // Above the large n threshold, so it walks the segments
+        long n = 20000000;
+        long count = 0;
+        long last = 0;
+        PrimeIterator it = PrimeList.iterator(n);
+        while (it.hasNext()) {
+            long p = it.nextPrime();
+            assertTrue(p > last);
+            last = p;
+            count++;
+        }
+        assertEquals(PrimeList.sieve(n, false), count);
+        assertEquals(19999999, last);
+    }
+    
     @Test(expected = IllegalArgumentException.class)
     public void mainNoArgs() {
         PrimeList.main(new String[] { });
@@ -74,4 +232,28 @@ public class PrimeListTest {
             System.setOut(out);
         }
     }
+    
+    @Test
+    public void mainBadLinePrintsNothing() throws IOException {
+        // Not even the queries before it
+        File file = File.createTempFile("prime_list", ".txt");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write("10\nfoo\n20\n".getBytes("US-ASCII"));
+        fos.close();
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ByteArrayOutputStream errs = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(baos));
+        System.setErr(new PrintStream(errs));
+        try {
+            PrimeList.main(new String[] { file.getPath() });
+            assertEquals("", baos.toString());
+            assertTrue(errs.toString().contains("Aborting"));
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
 }
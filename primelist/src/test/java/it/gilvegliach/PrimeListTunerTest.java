@@ -0,0 +1,115 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PrimeListTunerTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void calibrateSavesProfile() throws IOException {
+        File file = new File(mFolder.getRoot(), "primelist.properties");
+        Properties tuned = PrimeListTuner.calibrate(file);
+
+        Properties saved = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            saved.load(in);
+        } finally {
+            in.close();
+        }
+        assertEquals(tuned, saved);
+
+        int threads = Integer.parseInt(saved.getProperty("threads"));
+        assertTrue(1 <= threads);
+        assertTrue(threads <= Runtime.getRuntime().availableProcessors());
+        int segmentBytes = Integer.parseInt(saved.getProperty("segmentBytes"));
+        assertEquals(Integer.highestOneBit(segmentBytes), segmentBytes);
+        assertTrue(Long.parseLong(saved.getProperty("largeNThreshold")) > 0);
+        // Nothing else left around
+        assertEquals(1, mFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void profileFileFromProperty() {
+        String saved = System.getProperty("primelist.profile");
+        try {
+            System.setProperty("primelist.profile", "/tmp/foo.properties");
+            assertEquals(new File("/tmp/foo.properties"),
+                PrimeListTuner.profileFile());
+            System.setProperty("primelist.profile", "");
+            assertEquals(null, PrimeListTuner.profileFile());
+        } finally {
+            if (saved == null) {
+                System.clearProperty("primelist.profile");
+            } else {
+                System.setProperty("primelist.profile", saved);
+            }
+        }
+    }
+
+    @Test
+    public void badSettingsAreClamped() throws Exception {
+        // Settings are fixed when PrimeList is loaded, hence the other JVM
+        long[] ns = { 3, 10, 100, 2000000 };
+        File input = mFolder.newFile();
+        FileWriter writer = new FileWriter(input);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(expected);
+        try {
+            for (long n : ns) {
+                writer.write(n + "\n");
+                PrimeList.sieve(n, out);
+            }
+        } finally {
+            writer.close();
+        }
+
+        String java = System.getProperty("java.home") + File.separator + "bin"
+            + File.separator + "java";
+        Process process = new ProcessBuilder(java, 
+            "-Dprimelist.profile=",
+            "-Dprimelist.threads=0",
+            "-Dprimelist.largeNThreshold=2",
+            "-Dprimelist.segmentBytes=5000000",
+            "-cp", System.getProperty("java.class.path"),
+            PrimeList.class.getName(), input.getPath()).start();
+        process.getOutputStream().close();
+        String stdout = readFully(process.getInputStream());
+        String stderr = readFully(process.getErrorStream());
+        assertEquals(0, process.waitFor());
+        assertEquals(expected.toString(), stdout);
+        assertTrue(stderr, stderr.contains("primelist.threads 0 out of"));
+        assertTrue(stderr, stderr.contains("primelist.largeNThreshold 2 out of"));
+        assertTrue(stderr, stderr.contains("primelist.segmentBytes 5000000 out of"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mainTooManyArgs() throws IOException {
+        PrimeListTuner.main(new String[] { "foo", "bar", "baz" });
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+            bytes.write(buf, 0, n);
+        }
+        in.close();
+        return bytes.toString("UTF-8");
+    }
+}
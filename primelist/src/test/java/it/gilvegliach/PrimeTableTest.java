@@ -0,0 +1,99 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PrimeTableTest {
+    // Past the large n threshold and a few blocks, not a multiple of 30
+    private static final long LIMIT = 100000007;
+
+    @ClassRule
+    public static TemporaryFolder sFolder = new TemporaryFolder();
+
+    private static PrimeTable sTable;
+
+    @BeforeClass
+    public static void buildTable() throws IOException {
+        File file = sFolder.newFile("primes.tab");
+        PrimeTable.build(LIMIT, file);
+        sTable = PrimeTable.open(file);
+    }
+
+    @Test
+    public void tableMatchesIterator() {
+        PrimeIterator it = PrimeList.iterator(LIMIT + 1);
+        long prev = -1;
+        long n = 0;
+        while (it.hasNext()) {
+            long p = it.nextPrime();
+            n++;
+            assertTrue(sTable.isPrime(p));
+            assertEquals(p, sTable.nthPrime(n));
+            assertEquals(n, sTable.pi(p));
+            assertEquals(prev, sTable.prevPrime(p));
+            if (prev >= 0) {
+                assertEquals(p, sTable.nextPrime(prev));
+                if (p - prev > 1) {
+                    assertFalse(sTable.isPrime(p - 1));
+                    assertEquals(n - 1, sTable.pi(p - 1));
+                }
+            }
+            prev = p;
+        }
+        assertEquals(n, sTable.count());
+        assertEquals(-1, sTable.nextPrime(prev));
+        assertEquals(prev, sTable.prevPrime(LIMIT + 1));
+    }
+
+    @Test
+    public void piMatchesPrimeCounter() {
+        assertEquals(PrimeCounter.pi(LIMIT), sTable.pi(LIMIT));
+        assertEquals(PrimeCounter.pi(12345678), sTable.pi(12345678));
+    }
+
+    @Test
+    public void smallTables() throws IOException {
+        long[] expected = { 0, 0, 1, 2, 2, 3, 3, 4, 4, 4, 4, 5 };
+        for (int limit = 0; limit < expected.length; limit++) {
+            File file = sFolder.newFile("small" + limit + ".tab");
+            PrimeTable.build(limit, file);
+            PrimeTable table = PrimeTable.open(file);
+            assertEquals(expected[limit], table.count());
+            for (int x = 0; x <= limit; x++) {
+                assertEquals(expected[x], table.pi(x));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void piPastLimit() {
+        sTable.pi(LIMIT + 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nthPrimePastCount() {
+        sTable.nthPrime(sTable.count() + 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void openNotATable() throws IOException {
+        File file = sFolder.newFile("garbage.tab");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[100]);
+        } finally {
+            out.close();
+        }
+        PrimeTable.open(file);
+    }
+}
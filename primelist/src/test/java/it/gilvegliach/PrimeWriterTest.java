@@ -0,0 +1,128 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PrimeWriterTest {
+    private static final int[] ENCODINGS = { PrimeFormat.GAPS,
+        PrimeFormat.BITMAP };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void smallRanges() throws IOException {
+        long[][] ranges = { { 0, 0 }, { 0, 1 }, { 0, 2 }, { 2, 5 }, { 3, 3 },
+            { 4, 4 }, { 0, 100 }, { 7, 29 }, { 30, 31 }, { 1000, 1000000 } };
+        for (int encoding : ENCODINGS) {
+            for (long[] r : ranges) {
+                assertRoundTrip(r[0], r[1], encoding, false);
+                assertRoundTrip(r[0], r[1], encoding, true);
+            }
+        }
+    }
+
+    @Test
+    public void acrossBlocks() throws IOException {
+        // Base primes, then a few blocks, the first and last partial
+        for (int encoding : ENCODINGS) {
+            assertRoundTrip(0, 100000000, encoding, false);
+            assertRoundTrip(1000000000000L - 40000000, 1000000000000L + 31,
+                encoding, true);
+        }
+    }
+
+    @Test
+    public void seeks() throws IOException {
+        long lo = 500000000;
+        long hi = 600000000;
+        Random random = new Random(42);
+        for (int encoding : ENCODINGS) {
+            for (boolean compressed : new boolean[] { false, true }) {
+                File file = write(lo, hi, encoding, compressed);
+                PrimeReader in = new PrimeReader(file);
+                try {
+                    for (int i = 0; i < 20; i++) {
+                        long x = lo + (long) (random.nextDouble() * (hi - lo));
+                        in.seek(x);
+                        PrimeIterator it = PrimeList.iterator(x, hi);
+                        for (int j = 0; j < 3; j++) {
+                            assertEquals(it.nextPrime(), in.nextPrime());
+                        }
+                    }
+                    in.seek(0);
+                    assertEquals(500000003, in.nextPrime());
+                    in.seek(hi + 1);
+                    assertFalse(in.hasNext());
+                } finally {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void isCompact() throws IOException {
+        long hi = 100000000;
+        File gaps = write(0, hi, PrimeFormat.GAPS, false);
+        File bitmap = write(0, hi, PrimeFormat.BITMAP, false);
+        File container = write(0, hi, PrimeFormat.BITMAP, true);
+        // About a byte per prime, 8 bytes per 30 numbers, less deflated
+        assertTrue(gaps.length() < PrimeList.sieve(0, hi, null) * 11 / 10);
+        assertTrue(bitmap.length() < hi / 30 + 1000);
+        assertTrue(container.length() < bitmap.length());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownEncoding() throws IOException {
+        PrimeList.sieve(0, 100, new ByteArrayOutputStream(), 3, false);
+    }
+
+    private void assertRoundTrip(long lo, long hi, int encoding,
+            boolean compressed) throws IOException {
+        File file = write(lo, hi, encoding, compressed);
+        String what = "[" + lo + ", " + hi + "] " + encoding + " "
+            + compressed;
+        PrimeReader in = new PrimeReader(file);
+        try {
+            assertEquals(what, encoding, in.encoding());
+            assertEquals(what, compressed, in.isCompressed());
+            assertEquals(what, lo, in.low());
+            assertEquals(what, hi, in.high());
+            PrimeIterator it = PrimeList.iterator(lo, hi);
+            while (it.hasNext()) {
+                assertTrue(what, in.hasNext());
+                assertEquals(what, it.nextPrime(), in.nextPrime());
+            }
+            assertFalse(what, in.hasNext());
+        } finally {
+            in.close();
+        }
+    }
+
+    private File write(long lo, long hi, int encoding, boolean compressed)
+            throws IOException {
+        File file = mFolder.newFile();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            long count = PrimeList.sieve(lo, hi, out, encoding, compressed);
+            assertEquals(PrimeList.sieve(lo, hi, null), count);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
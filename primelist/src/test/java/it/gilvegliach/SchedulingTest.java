@@ -0,0 +1,150 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.junit.Test;
+
+import it.gilvegliach.PrimeList.BlockResult;
+import it.gilvegliach.PrimeList.CountBlocksTask;
+import it.gilvegliach.PrimeList.PrintBlockTask;
+import it.gilvegliach.PrimeList.ReorderBuffer;
+
+public class SchedulingTest {
+    // Whole blocks
+    private static final long LO = PrimeList.blockStart(1000000000000L);
+    private static final int BLOCKS = 4;
+    private static final long HI = LO + BLOCKS * PrimeList.BLOCK_SPAN - 1;
+
+    @Test
+    public void reorderBufferTakesInOrder() throws InterruptedException {
+        final ReorderBuffer<Integer> results = new ReorderBuffer<Integer>(4);
+        // Put backwards, each on a thread of its own
+        Thread[] threads = new Thread[4];
+        for (int i = threads.length - 1; i >= 0; i--) {
+            final int seq = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    results.put(seq, seq * 10);
+                }
+            };
+            threads[i].start();
+            threads[i].join();
+        }
+        for (int seq = 0; seq < 4; seq++) {
+            assertEquals(seq * 10, (int) results.take(seq));
+        }
+        // Slots are free again for the next round
+        results.put(5, 50);
+        results.put(4, 40);
+        assertEquals(40, (int) results.take(4));
+        assertEquals(50, (int) results.take(5));
+    }
+
+    @Test
+    public void reorderBufferRethrowsFailure() {
+        ReorderBuffer<Integer> results = new ReorderBuffer<Integer>(4);
+        IllegalStateException failure = new IllegalStateException("block");
+        results.put(0, 0);
+        results.fail(failure);
+        results.fail(new IllegalStateException("later"));
+        try {
+            results.take(1);
+            fail();
+        } catch (RuntimeException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void blocksCompletedOutOfOrderAreTakenInOrder() {
+        int[] primes = PrimeList.sieveInitial(PrimeList.isqrt(HI));
+        ReorderBuffer<BlockResult> results =
+            new ReorderBuffer<BlockResult>(BLOCKS);
+        long start = PrimeList.blockStart(LO);
+        for (int seq = BLOCKS - 1; seq >= 0; seq--) {
+            new PrintBlockTask(primes, start + seq * PrimeList.BLOCK_SPAN, LO,
+                HI, new ByteBuilder(16), PrimeFormat.TEXT, results, seq)
+                .invoke();
+        }
+        PrimeIterator it = PrimeList.iterator(LO, HI);
+        for (int seq = 0; seq < BLOCKS; seq++) {
+            BlockResult res = results.take(seq);
+            String text = new String(res.bytes.array(), 0, res.bytes.size());
+            String[] ps = text.split(",");
+            // Each prime after a separator
+            assertEquals(res.count + 1, ps.length);
+            for (int i = 1; i < ps.length; i++) {
+                assertEquals(it.nextPrime(), Long.parseLong(ps[i].trim()));
+            }
+        }
+        assertTrue(!it.hasNext());
+    }
+
+    @Test
+    public void failingBlockIsRethrown() {
+        ReorderBuffer<BlockResult> results = new ReorderBuffer<BlockResult>(2);
+        // No base primes: the sieve fails on the block
+        new PrintBlockTask(null, PrimeList.blockStart(LO), LO, HI,
+            new ByteBuilder(16), PrimeFormat.TEXT, results, 0).invoke();
+        try {
+            results.take(0);
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(String.valueOf(e.getCause()),
+                e.getCause() instanceof NullPointerException);
+        }
+    }
+
+    @Test
+    public void countBlocksTaskSumsBlocks() {
+        int[] primes = PrimeList.sieveInitial(PrimeList.isqrt(HI));
+        long start = PrimeList.blockStart(LO);
+        long expected = 0;
+        for (int seq = 0; seq < BLOCKS; seq++) {
+            expected += PrimeList.sieveBlock(primes,
+                start + seq * PrimeList.BLOCK_SPAN, LO, HI, null);
+        }
+        long count = PrimeList.POOL.invoke(
+            new CountBlocksTask(primes, start, LO, HI, 0, BLOCKS));
+        assertEquals(expected, count);
+        assertEquals(expected, PrimeList.sieveParallel(primes, LO, HI, null,
+            false));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void failingCountIsRethrown() {
+        PrimeList.POOL.invoke(new CountBlocksTask(null,
+            PrimeList.blockStart(LO), LO, HI, 0, BLOCKS));
+    }
+
+    @Test
+    public void tasksInMemoryAreBounded() {
+        // Each block running or waiting for the sink holds a buffer of its
+        // own, handed back only once written: buffers tell how many there
+        // were at most. The sink is slow, so that workers run ahead
+        final Set<ByteBuilder> bufs = Collections.newSetFromMap(
+            new IdentityHashMap<ByteBuilder, Boolean>());
+        long hi = LO + 2 * PrimeList.MAX_TASKS_IN_MEMORY * PrimeList.BLOCK_SPAN;
+        int[] primes = PrimeList.sieveInitial(PrimeList.isqrt(hi));
+        PrimeList.sieveParallel(primes, LO, hi, new PrimeList.BlockSink() {
+            @Override
+            public void write(long lo, long hi, ByteBuilder bytes, long count) {
+                bufs.add(bytes);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, PrimeFormat.GAPS);
+        assertEquals(PrimeList.MAX_TASKS_IN_MEMORY, bufs.size());
+    }
+}
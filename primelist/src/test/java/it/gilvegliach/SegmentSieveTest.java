@@ -0,0 +1,151 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import it.gilvegliach.PrimeList.SegmentSieve;
+
+public class SegmentSieveTest {
+    private static final int SEGMENT_BYTES = PrimeList.SEGMENT_BYTES;
+
+    @Test
+    public void basePrimesFitInts() {
+        // Up to sqrt(MAX_N): the largest base primes ever needed
+        int[] primes = PrimeList.sieveInitial(
+            PrimeList.isqrt(PrimeList.MAX_N));
+        assertEquals(3162277, PrimeList.isqrt(PrimeList.MAX_N));
+        assertEquals(2, primes[0]);
+        assertEquals(3162277, primes[primes.length - 1]);
+        assertEquals(227647, primes.length);
+    }
+
+    @Test
+    public void offsetsCarryAcrossSegments() {
+        // Several segments, the last one partial
+        long base = PrimeList.blockStart(1000000000L);
+        int nbytes = 3 * SEGMENT_BYTES + 1001;
+        assertBlock(newSieve(base, nbytes), base, nbytes);
+    }
+
+    @Test
+    public void offsetsCarryAcrossBlocks() {
+        long base = PrimeList.blockStart(1000000000L);
+        int nbytes = SEGMENT_BYTES + 120;
+        SegmentSieve sieve = newSieve(base, 3 * nbytes);
+        // Consecutive blocks reuse the offsets, others compute them again
+        long[] bases = { base, base + 30L * nbytes, base + 60L * nbytes,
+            base, base + 60L * nbytes };
+        for (long b : bases) {
+            sieve.startBlock(b, nbytes);
+            assertBlock(sieve, b, nbytes);
+        }
+    }
+
+    @Test
+    public void primesAroundSqrtOfSegmentEnd() {
+        // From 0: the prime with its square right past the end of the 
+        // first segment starts crossing off in the second, the one before
+        // it near the end of the first
+        int[] primes = PrimeList.sieveInitial(PrimeList.isqrt(60L
+            * SEGMENT_BYTES));
+        int i = 0;
+        while ((long) primes[i] * primes[i] < 30L * SEGMENT_BYTES) i++;
+        assertTrue(primes[i] < SEGMENT_BYTES);
+        assertTrue((long) primes[i - 1] * primes[i - 1] < 30L * SEGMENT_BYTES);
+        SegmentSieve sieve = new SegmentSieve(primes);
+        sieve.startBlock(0, 2 * SEGMENT_BYTES);
+        assertBlock(sieve, 0, 2 * SEGMENT_BYTES);
+    }
+
+    @Test
+    public void largePrimesGoThroughBuckets() {
+        // Near MAX_N most base primes are past the segment size, hence in
+        // the buckets, and hit a segment at most once per stream
+        long base = PrimeList.blockStart(PrimeList.MAX_N - 30L
+            * (2 * SEGMENT_BYTES + 1001));
+        int nbytes = 2 * SEGMENT_BYTES + 1001;
+        SegmentSieve sieve = newSieve(base, nbytes);
+        int[] primes = sieve.mPrimes;
+        assertTrue(primes[primes.length - 1] > 3 * SEGMENT_BYTES);
+        assertBlock(sieve, base, nbytes);
+        // Buckets are emptied by the segments, and refilled by the next block
+        sieve.startBlock(base, nbytes);
+        assertBlock(sieve, base, nbytes);
+    }
+
+    @Test
+    public void largePrimeSquaredAtBlockEnd() {
+        // The first large prime starts crossing off in the last 120 numbers
+        // of the block, the next one past it
+        int[] primes = PrimeList.sieveInitial(2 * SEGMENT_BYTES);
+        int i = PrimeList.lowerBound(primes, SEGMENT_BYTES);
+        long square = (long) primes[i] * primes[i];
+        int nbytes = SEGMENT_BYTES + 4001;
+        long base = PrimeList.blockStart(square + 120 - 30L * nbytes);
+        long end = base + 30L * nbytes;
+        assertTrue(square < end && end <= square + 120);
+        SegmentSieve sieve = new SegmentSieve(primes);
+        sieve.startBlock(base, nbytes);
+        assertBlock(sieve, base, nbytes);
+    }
+
+    /** A sieve with the base primes of [base, base + 30 * nbytes) */
+    static SegmentSieve newSieve(long base, int nbytes) {
+        long end = base + 30L * nbytes;
+        SegmentSieve sieve = new SegmentSieve(
+            PrimeList.sieveInitial(PrimeList.isqrt(end - 1)));
+        sieve.startBlock(base, nbytes);
+        return sieve;
+    }
+
+    /**
+     * Sieves the segments of the block started on <code>sieve</code>,
+     * checking each against {@link #composites(int[], long, int)}.
+     */
+    static void assertBlock(SegmentSieve sieve, long base, int nbytes) {
+        boolean[] expected = composites(sieve.mPrimes, base, nbytes);
+        int segments = 0;
+        int from = 0;
+        while (sieve.nextSegment()) {
+            assertEquals(base + 30L * from, sieve.mBase);
+            int bytes = Math.min(SEGMENT_BYTES, nbytes - from);
+            assertEquals(bytes, sieve.mBytes);
+            for (int k = 0; k < bytes << 3; k++) {
+                boolean set = sieve.mBits.get(k) == 1;
+                if (set != expected[(from << 3) + k]) {
+                    throw new AssertionError(PrimeList.wheelNumber(
+                        sieve.mBase, k) + " marked " + set);
+                }
+            }
+            from += bytes;
+            segments++;
+        }
+        assertEquals(nbytes, from);
+        assertEquals((nbytes + SEGMENT_BYTES - 1) / SEGMENT_BYTES, segments);
+    }
+
+    /**
+     * Whether the wheel numbers of <code>[base, base + 30 * nbytes)</code>
+     * are not primes, by crossing off the multiples of <code>primes</code>
+     * one by one, from their squares.
+     */
+    static boolean[] composites(int[] primes, long base, int nbytes) {
+        long end = base + 30L * nbytes;
+        boolean[] composite = new boolean[nbytes << 3];
+        if (base == 0) composite[0] = true;     // 1
+        for (int p : primes) {
+            if (p < 7) continue;
+            if ((long) p * p >= end) break;
+            long m = Math.max((long) p * p, (base + p - 1) / p * p);
+            // Odd multiples only, the others are off the wheel
+            if ((m & 1) == 0) m += p;
+            for (; m < end; m += 2 * p) {
+                if (m % 3 == 0 || m % 5 == 0) continue;
+                composite[PrimeList.wheelIndex(base, m)] = true;
+            }
+        }
+        return composite;
+    }
+}
@@ -0,0 +1,265 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SieveCoordinatorTest {
+    private static final List<Process> sProcesses = new ArrayList<Process>();
+    private static final List<InetSocketAddress> sWorkers =
+        new ArrayList<InetSocketAddress>();
+
+    /** Two workers in JVMs of their own, as in production */
+    @BeforeClass
+    public static void startWorkers() throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin"
+            + File.separator + "java";
+        for (int i = 0; i < 2; i++) {
+            Process process = new ProcessBuilder(java, "-cp",
+                System.getProperty("java.class.path"),
+                SieveWorker.class.getName()).start();
+            sProcesses.add(process);
+            BufferedReader br = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), "US-ASCII"));
+            String line = br.readLine();
+            assertTrue(line, line.startsWith("Listening on "));
+            int port = Integer.parseInt(line.substring(13));
+            sWorkers.add(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port));
+        }
+    }
+
+    @AfterClass
+    public static void stopWorkers() {
+        for (Process process : sProcesses) {
+            process.destroy();
+        }
+    }
+
+    @Test
+    public void countMatchesSieve() throws IOException {
+        SieveCoordinator coordinator = new SieveCoordinator(sWorkers);
+        long lo = 1000000000000L;
+        long hi = lo + 200000000;
+        assertEquals(PrimeList.sieve(lo, hi, null), coordinator.count(lo, hi));
+        assertEquals(PrimeList.sieve(0, 99, null), coordinator.count(0, 99));
+        assertEquals(0, coordinator.count(0, 1));
+    }
+
+    @Test
+    public void printMatchesSieve() throws IOException {
+        SieveCoordinator coordinator = new SieveCoordinator(sWorkers);
+        // Many shards, from within the initial primes
+        long[][] ranges = { { 0, 200000000 }, { 10000, 100000000 },
+            { 24, 28 }, { 0, 100 } };
+        for (long[] range : ranges) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            long count = PrimeList.sieve(range[0], range[1],
+                new PrintStream(expected));
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            assertEquals(count, coordinator.print(range[0], range[1],
+                new PrintStream(actual)));
+            assertTrue(Arrays.equals(expected.toByteArray(),
+                actual.toByteArray()));
+        }
+    }
+
+    @Test
+    public void failedShardsAreRetried() throws IOException {
+        // Accepts and hangs up straight away, as a dying worker would
+        final ServerSocket flaky = new ServerSocket(0, 50,
+            InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = flaky.accept();
+                        socket.close();
+                    }
+                } catch (IOException ignored) {
+                    // Closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        // And one not listening at all
+        ServerSocket closed = new ServerSocket(0, 50,
+            InetAddress.getLoopbackAddress());
+        int dead = closed.getLocalPort();
+        closed.close();
+
+        try {
+            List<InetSocketAddress> workers =
+                new ArrayList<InetSocketAddress>(sWorkers);
+            workers.add(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), flaky.getLocalPort()));
+            workers.add(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), dead));
+            SieveCoordinator coordinator = new SieveCoordinator(workers);
+            assertEquals(PrimeList.sieve(0, 300000000, null),
+                coordinator.count(0, 300000000));
+        } finally {
+            flaky.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void hungShardsAreRetried() throws IOException {
+        // Accepts and never answers, as a stopped worker would
+        final ServerSocket hung = new ServerSocket(0, 50,
+            InetAddress.getLoopbackAddress());
+        final List<Socket> accepted =
+            Collections.synchronizedList(new ArrayList<Socket>());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        accepted.add(hung.accept());
+                    }
+                } catch (IOException ignored) {
+                    // Closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            List<InetSocketAddress> workers =
+                new ArrayList<InetSocketAddress>(sWorkers);
+            workers.add(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), hung.getLocalPort()));
+            SieveCoordinator coordinator = new SieveCoordinator(workers, 1000);
+            assertEquals(PrimeList.sieve(0, 300000000, null),
+                coordinator.count(0, 300000000));
+            assertTrue(!accepted.isEmpty());
+        } finally {
+            hung.close();
+        }
+    }
+
+    @Test
+    public void workerRejectsBadShards() throws IOException {
+        Socket socket = new Socket(sWorkers.get(0).getAddress(),
+            sWorkers.get(0).getPort());
+        try {
+            DataOutputStream out =
+                new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            // Count: op 1, then lo and hi; status 1 is an error, 0 the count
+            out.writeByte(1);
+            out.writeLong(-1);
+            out.writeLong(100);
+            out.writeByte(7);
+            out.writeLong(0);
+            out.writeLong(100);
+            out.writeByte(1);
+            out.writeLong(0);
+            out.writeLong(100);
+            out.flush();
+            assertEquals(1, in.readByte());
+            assertTrue(in.readUTF().contains("out of range"));
+            assertEquals(1, in.readByte());
+            assertTrue(in.readUTF().contains("Unknown op"));
+            // Still connected
+            assertEquals(0, in.readByte());
+            assertEquals(25, in.readLong());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void rejectedShardsAreRetried() throws IOException {
+        // Answers every count with an error
+        final ServerSocket rejecting = new ServerSocket(0, 50,
+            InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = rejecting.accept();
+                    DataInputStream in =
+                        new DataInputStream(socket.getInputStream());
+                    DataOutputStream out =
+                        new DataOutputStream(socket.getOutputStream());
+                    while (true) {
+                        in.readByte();
+                        in.readLong();
+                        in.readLong();
+                        out.writeByte(1);
+                        out.writeUTF("Sieve failed");
+                        out.flush();
+                    }
+                } catch (IOException ignored) {
+                    // Closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            List<InetSocketAddress> workers =
+                new ArrayList<InetSocketAddress>(sWorkers);
+            workers.add(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), rejecting.getLocalPort()));
+            SieveCoordinator coordinator = new SieveCoordinator(workers);
+            assertEquals(PrimeList.sieve(0, 300000000, null),
+                coordinator.count(0, 300000000));
+        } finally {
+            rejecting.close();
+        }
+    }
+
+    @Test
+    public void workerOnAllInterfaces() throws IOException {
+        SieveWorker worker = new SieveWorker(
+            InetAddress.getByName("0.0.0.0"), 0);
+        try {
+            worker.start();
+            List<InetSocketAddress> workers = Arrays.asList(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    worker.port()));
+            assertEquals(PrimeList.sieve(0, 100000000, null),
+                new SieveCoordinator(workers).count(0, 100000000));
+        } finally {
+            worker.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void allWorkersDead() throws IOException {
+        ServerSocket closed = new ServerSocket(0, 50,
+            InetAddress.getLoopbackAddress());
+        int dead = closed.getLocalPort();
+        closed.close();
+        List<InetSocketAddress> workers = Arrays.asList(new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), dead));
+        new SieveCoordinator(workers).count(0, 100000000);
+    }
+}
@@ -0,0 +1,102 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SieveMetricsTest {
+    private SieveMetricsMXBean mMetrics;
+
+    @Before
+    public void setUp() throws Exception {
+        // Set by the metricsTest task of the build
+        assumeTrue(Boolean.getBoolean("primelist.metrics"));
+        // Loads the metrics, which register themselves
+        PrimeList.sieve(100, null);
+        mMetrics = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+            new ObjectName("it.gilvegliach:type=SieveMetrics"),
+            SieveMetricsMXBean.class);
+        mMetrics.reset();
+    }
+
+    @Test
+    public void outputRun() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        // Past the first block, from 0
+        long n = 40000000;
+        PrimeList.sieve(n, new PrintStream(baos));
+
+        assertEquals(1, mMetrics.getInitialSieves());
+        assertEquals(1, mMetrics.getRuns());
+        assertEquals(2, mMetrics.getBlocks());
+        assertTrue(mMetrics.getSegments() >= 2);
+        assertTrue(mMetrics.getSegmentsPerSecond() > 0);
+        assertTrue(mMetrics.getMaxQueueDepth() <= mMetrics.getQueueCapacity());
+        assertTrue(mMetrics.getQueueDepth() >= 1);
+        // All but the initial primes, with their separators
+        assertTrue(mMetrics.getBytesWritten() > 0);
+        assertTrue(mMetrics.getBytesWritten() < baos.size());
+        assertTrue(mMetrics.getAllocatedBytesPerSegment() >= -1);
+
+        long busy = 0;
+        for (long nanos : mMetrics.getWorkerBusyNanos().values()) {
+            busy += nanos;
+        }
+        assertTrue(busy > 0);
+        assertEquals(mMetrics.getWorkerBusyNanos().keySet(),
+            mMetrics.getWorkerIdleNanos().keySet());
+    }
+
+    @Test
+    public void countingRun() {
+        PrimeList.sieve(1000000000000L, 1000000000000L + 50000000, null);
+        assertEquals(1, mMetrics.getRuns());
+        assertTrue(mMetrics.getBlocks() >= 2);
+        assertEquals(0, mMetrics.getBytesWritten());
+    }
+
+    @Test
+    public void overlappingRunsIdleOnce() throws InterruptedException {
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[3];
+        for (int i = 0; i < threads.length; i++) {
+            final long lo = 1000000000000L + i * 100000000L;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    PrimeList.sieve(lo, lo + 50000000, null);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long wall = System.nanoTime() - start;
+        assertEquals(threads.length, mMetrics.getRuns());
+        // Idle while no run was in progress isn't counted, nor twice while
+        // several were
+        for (long idle : mMetrics.getWorkerIdleNanos().values()) {
+            assertTrue(idle + " > " + wall, idle <= wall);
+        }
+    }
+
+    @Test
+    public void reset() {
+        PrimeList.sieve(3000000, null);
+        mMetrics.reset();
+        assertEquals(0, mMetrics.getBlocks());
+        assertEquals(0, mMetrics.getInitialSieves());
+        assertEquals(0, mMetrics.getMaxQueueDepth());
+    }
+}
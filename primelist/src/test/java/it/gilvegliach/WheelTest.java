@@ -0,0 +1,106 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import it.gilvegliach.PrimeList.SegmentSieve;
+
+public class WheelTest {
+    // Multiples of 120, at odd and even offsets in the 1001 byte period of
+    // the presieve pattern, and across its end
+    private static final long[] BASES = { 0, 120, 240, 120 * 999,
+        120 * 1000, 120 * 1001, 120 * 1003, 120L * 1001 * 1000 + 120 * 500,
+        PrimeList.blockStart(1000000000000L) };
+    private static final int NBYTES = 2 * 1001 + 13;
+
+    @Test
+    public void indexAndNumberRoundTrip() {
+        for (long base : BASES) {
+            for (int k = 0; k < 3 * 64; k++) {
+                long n = PrimeList.wheelNumber(base, k);
+                assertEquals(1, gcd(n, 30));
+                assertEquals(k, PrimeList.wheelIndex(base, n));
+            }
+        }
+    }
+
+    @Test
+    public void indexOfAnyNumberIsTheNextOnTheWheel() {
+        for (long base : BASES) {
+            for (long i = base; i < base + 300; i++) {
+                long n = PrimeList.wheelNumber(base,
+                    PrimeList.wheelIndex(base, i));
+                long next = i;
+                while (gcd(next, 30) != 1) next++;
+                assertEquals(next, n);
+            }
+        }
+    }
+
+    @Test
+    public void presieveMarksMultiplesOf7To13() {
+        for (long base : BASES) {
+            SegmentSieve sieve = presieved(base);
+            for (int k = 0; k < NBYTES << 3; k++) {
+                long n = PrimeList.wheelNumber(base, k);
+                boolean multiple = n > 13
+                    && (n % 7 == 0 || n % 11 == 0 || n % 13 == 0);
+                if (multiple) {
+                    assertEquals(base + ": " + n, 1, sieve.mBits.get(k));
+                }
+            }
+        }
+        // Not the primes themselves, nor 1 as a prime
+        SegmentSieve sieve = presieved(0);
+        assertEquals(1, sieve.mBits.get(0));
+        assertEquals(0, sieve.mBits.get(PrimeList.wheelIndex(0, 7)));
+        assertEquals(0, sieve.mBits.get(PrimeList.wheelIndex(0, 11)));
+        assertEquals(0, sieve.mBits.get(PrimeList.wheelIndex(0, 13)));
+    }
+
+    @Test
+    public void stampedPairsMarkExactlyMultiplesOf17To61() {
+        // With 7, 11 and 13: a presieved segment is marked where, and only
+        // where, a number has a factor up to 61. Bases are at several
+        // offsets in the periods of all the pairs
+        Random random = new Random(42);
+        long[] bases = new long[BASES.length + 20];
+        System.arraycopy(BASES, 0, bases, 0, BASES.length);
+        for (int i = BASES.length; i < bases.length; i++) {
+            bases[i] = PrimeList.blockStart(
+                (long) (random.nextDouble() * PrimeList.MAX_N));
+        }
+        for (long base : bases) {
+            SegmentSieve sieve = presieved(base);
+            for (int k = 0; k < NBYTES << 3; k++) {
+                long n = PrimeList.wheelNumber(base, k);
+                boolean marked = n == 1;
+                for (int p = 7; p <= 61 && !marked; p++) {
+                    marked = n > p && n % p == 0;
+                }
+                assertEquals(base + ": " + n, marked ? 1 : 0,
+                    sieve.mBits.get(k));
+            }
+        }
+    }
+
+    /**
+     * A segment of NBYTES at <code>base</code> with base primes up to 61:
+     * only what's presieved is set.
+     */
+    static SegmentSieve presieved(long base) {
+        SegmentSieve sieve = new SegmentSieve(PrimeList.sieveInitial(61));
+        sieve.startBlock(base, NBYTES);
+        assertTrue(sieve.nextSegment());
+        assertEquals(NBYTES, sieve.mBytes);
+        return sieve;
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
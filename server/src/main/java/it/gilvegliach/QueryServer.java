@@ -0,0 +1,489 @@
+package it.gilvegliach;
+
+import static it.gilvegliach.Utils.checkCondArg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Answers prime and sum of two squares queries over HTTP, on localhost
+ * only. Answers are plain text, one number and a newline:
+ * <pre>
+ *     GET /pi?x=...             primes in [0..x]
+ *     GET /count?lo=...&amp;hi=...  primes in [lo..hi]
+ *     GET /isprime?x=...        1 or 0
+ *     GET /squares?n=...        ways n is a sum of two squares
+ *     GET /stats                latencies and load, as JSON
+ * </pre>
+ * Requests run on a fixed pool of handler threads. At most a given number
+ * are in flight, queued or running: past that they're turned down with a
+ * 503 and a Retry-After by a thread of their own, rather than piling up.
+ * Prime queries are answered by a shared {@link PrimeCache}, up to
+ * {@link #CACHE_LIMIT}. Those past what it sieved so far, its bound, run a
+ * few at a time, as each takes all the cpus: below the limit they wait for
+ * a single pass of the sieve, above it they sieve or count on the spot.
+ * Square queries are gathered while the previous batch is counted, and
+ * counted together by {@link DoubleSquare#countDecompositions(int[])}.
+ */
+public class QueryServer implements Closeable {
+    static final long CACHE_LIMIT = 1L << 32;
+    private static final long CACHE_BYTES = 64L << 20;
+    private static final int HEAVY_PERMITS = 2;
+    private static final int MAX_BATCH = 1 << 12;
+    private static final int RETRY_AFTER_SECONDS = 1;
+    private static final String[] ENDPOINTS = {
+        "/pi", "/count", "/isprime", "/squares" };
+
+    private final HttpServer mServer;
+    private final ExecutorService mPool;
+    private final ExecutorService mRejections;
+    private final int mMaxInFlight;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final Semaphore mHeavy = new Semaphore(HEAVY_PERMITS);
+    private final PrimeCache mCache = new PrimeCache(CACHE_BYTES,
+        CACHE_LIMIT);
+    private final SquaresBatcher mSquares = new SquaresBatcher();
+    private final Map<String, Latencies> mLatencies =
+        new HashMap<String, Latencies>();
+
+    /**
+     * Listens on <code>port</code> of localhost, any free one if it's 0,
+     * with <code>threads</code> handler threads and up to
+     * <code>maxInFlight</code> requests in flight.
+     */
+    public QueryServer(int port, int threads, int maxInFlight)
+            throws IOException {
+        checkCondArg(0 <= port && port <= 0xFFFF, "port must be in [0, 65535]");
+        checkCondArg(threads > 0, "threads must be > 0");
+        checkCondArg(maxInFlight >= threads, "maxInFlight must be >= threads");
+        mMaxInFlight = maxInFlight;
+        mPool = Executors.newFixedThreadPool(threads,
+            new RequestThreadFactory("query-handler-", true));
+        // Turning down takes a write and a close: one thread keeps up
+        mRejections = Executors.newSingleThreadExecutor(
+            new RequestThreadFactory("query-rejecter-", false));
+        mServer = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        mServer.setExecutor(new Admission());
+        for (String endpoint : ENDPOINTS) {
+            mLatencies.put(endpoint, new Latencies());
+            mServer.createContext(endpoint, new QueryHandler(endpoint));
+        }
+        mServer.createContext("/stats", new QueryHandler("/stats"));
+    }
+
+    public int port() {
+        return mServer.getAddress().getPort();
+    }
+
+    public void start() {
+        mSquares.start();
+        mServer.start();
+    }
+
+    @Override
+    public void close() {
+        mServer.stop(0);
+        mPool.shutdownNow();
+        mRejections.shutdownNow();
+        mSquares.interrupt();
+    }
+
+    /** 
+     * Answers a query on a handler thread, throwing IllegalArgumentException
+     * if it's bad. Protected for the tests, to hold a query in flight.
+     */
+    protected String answer(String endpoint, Map<String, String> params)
+            throws InterruptedException {
+        if (endpoint.equals("/pi")) {
+            long x = param(params, "x");
+            checkCondArg(0 <= x && x <= PrimeList.MAX_N,
+                "x must be in [0, 10^13]");
+            boolean heavy = enterHeavy(x);
+            try {
+                return String.valueOf(mCache.pi(x));
+            } finally {
+                if (heavy) mHeavy.release();
+            }
+        }
+        if (endpoint.equals("/count")) {
+            long lo = param(params, "lo");
+            long hi = param(params, "hi");
+            checkCondArg(0 <= lo && hi <= PrimeList.MAX_N,
+                "[lo, hi] must be in [0, 10^13]");
+            boolean heavy = enterHeavy(hi);
+            try {
+                return String.valueOf(mCache.count(lo, hi));
+            } finally {
+                if (heavy) mHeavy.release();
+            }
+        }
+        if (endpoint.equals("/isprime")) {
+            long x = param(params, "x");
+            checkCondArg(0 <= x && x <= PrimeList.MAX_N,
+                "x must be in [0, 10^13]");
+            boolean heavy = enterHeavy(x);
+            try {
+                return mCache.isPrime(x) ? "1" : "0";
+            } finally {
+                if (heavy) mHeavy.release();
+            }
+        }
+        if (endpoint.equals("/squares")) {
+            long n = param(params, "n");
+            checkCondArg(0 <= n && n <= Integer.MAX_VALUE,
+                "n must be in [0, 2^31)");
+            return String.valueOf(mSquares.count((int) n));
+        }
+        return stats();
+    }
+
+    /**
+     * Takes a heavy permit if a query up to <code>x</code> misses the cache,
+     * returning whether it did: the cache then sieves up to x, or answers
+     * past its limit with a pass of the sieve or the counter.
+     */
+    private boolean enterHeavy(long x) throws InterruptedException {
+        if (x < mCache.bound()) return false;
+        mHeavy.acquire();
+        return true;
+    }
+
+    private String stats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"inFlight\":").append(mInFlight.get())
+            .append(",\"maxInFlight\":").append(mMaxInFlight)
+            .append(",\"rejected\":").append(mRejected.get())
+            .append(",\"squareBatches\":").append(mSquares.mBatches.get())
+            .append(",\"squareQueries\":").append(mSquares.mQueries.get());
+        for (String endpoint : ENDPOINTS) {
+            long[] stats = mLatencies.get(endpoint).stats();
+            sb.append(",\"").append(endpoint.substring(1)).append("\":{")
+                .append("\"requests\":").append(stats[0])
+                .append(",\"p50Micros\":").append(stats[1])
+                .append(",\"p99Micros\":").append(stats[2])
+                .append(",\"rejected\":").append(stats[3])
+                .append(",\"errors\":").append(stats[4])
+                .append('}');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static long param(Map<String, String> params, String name) {
+        String value = params.get(name);
+        checkCondArg(value != null, "Missing parameter " + name);
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    /** Parameters of the query string, not URL-decoded: they're numbers */
+    private static Map<String, String> params(URI uri) {
+        Map<String, String> params = new HashMap<String, String>();
+        String query = uri.getRawQuery();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(pair.substring(0, eq), pair.substring(eq + 1));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Sends a response, freeing the slot of the request first, if it holds
+     * one: the client may send the next request as soon as it has this one.
+     */
+    private void send(HttpExchange exchange, int status, String body)
+            throws IOException {
+        leave((RequestThread) Thread.currentThread());
+        byte[] bytes = (body + "\n").getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type",
+            "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Hands requests to the pool while there's room, otherwise to the
+     * rejecting thread, that turns them down: the thread accepting them
+     * never writes to a client.
+     */
+    class Admission implements Executor {
+        @Override
+        public void execute(final Runnable request) {
+            final long accepted = System.nanoTime();
+            if (mInFlight.incrementAndGet() > mMaxInFlight) {
+                mInFlight.decrementAndGet();
+                mRejected.incrementAndGet();
+                mRejections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ((RequestThread) Thread.currentThread()).mAccepted =
+                            accepted;
+                        request.run();
+                    }
+                });
+                return;
+            }
+            mPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    RequestThread thread =
+                        (RequestThread) Thread.currentThread();
+                    thread.mAccepted = accepted;
+                    thread.mHolding = true;
+                    try {
+                        request.run();
+                    } finally {
+                        leave(thread);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Frees the slot in flight held by <code>thread</code>, if any */
+    private void leave(RequestThread thread) {
+        if (thread.mHolding) {
+            thread.mHolding = false;
+            mInFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Threads of the handler pool, that answer requests, or of the
+     * rejecting one, that turns them down, with when the request they run
+     * was accepted.
+     */
+    static class RequestThread extends Thread {
+        final boolean mAdmitting;
+        long mAccepted;
+        boolean mHolding;   // a slot in flight
+
+        RequestThread(Runnable target, String name, boolean admitting) {
+            super(target, name);
+            mAdmitting = admitting;
+        }
+    }
+
+    static class RequestThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final boolean mAdmitting;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        RequestThreadFactory(String prefix, boolean admitting) {
+            mPrefix = prefix;
+            mAdmitting = admitting;
+        }
+
+        @Override
+        public Thread newThread(Runnable target) {
+            Thread thread = new RequestThread(target,
+                mPrefix + mCount.incrementAndGet(), mAdmitting);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    class QueryHandler implements HttpHandler {
+        private final String mEndpoint;
+
+        QueryHandler(String endpoint) {
+            mEndpoint = endpoint;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            RequestThread thread = (RequestThread) Thread.currentThread();
+            int status = 500;
+            try {
+                status = respond(exchange, thread.mAdmitting);
+            } catch (RuntimeException e) {
+                send(exchange, status, String.valueOf(e));
+            } finally {
+                exchange.close();
+                Latencies latencies = mLatencies.get(mEndpoint);
+                if (latencies != null) {
+                    latencies.add(System.nanoTime() - thread.mAccepted, status);
+                }
+            }
+        }
+
+        /** Sends the response, returning its status */
+        private int respond(HttpExchange exchange, boolean admitted)
+                throws IOException {
+            if (!admitted) {
+                exchange.getResponseHeaders().set("Retry-After",
+                    String.valueOf(RETRY_AFTER_SECONDS));
+                send(exchange, 503, "Too many requests in flight");
+                return 503;
+            }
+            if (!exchange.getRequestMethod().equals("GET")) {
+                send(exchange, 405, "Only GET is supported");
+                return 405;
+            }
+            if (!exchange.getRequestURI().getPath().equals(mEndpoint)) {
+                send(exchange, 404, "Not found");
+                return 404;
+            }
+            String body;
+            try {
+                body = answer(mEndpoint, params(exchange.getRequestURI()));
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, e.getMessage());
+                return 400;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                send(exchange, 503, "Shutting down");
+                return 503;
+            }
+            send(exchange, 200, body);
+            return 200;
+        }
+    }
+
+    /**
+     * Latencies of the last {@link #SIZE} requests, in a ring, whatever
+     * their status, with the count of those turned down and of errors.
+     */
+    static class Latencies {
+        static final int SIZE = 1 << 12;
+        private final long[] mNanos = new long[SIZE];
+        private long mCount;
+        private long mRejected;
+        private long mErrors;
+
+        synchronized void add(long nanos, int status) {
+            mNanos[(int) (mCount++ % SIZE)] = nanos;
+            if (status == 503) {
+                mRejected++;
+            } else if (status != 200) {
+                mErrors++;
+            }
+        }
+
+        /** 
+         * Requests so far, p50 and p99 in microseconds, requests turned down
+         * and errors
+         */
+        synchronized long[] stats() {
+            int n = (int) Math.min(mCount, SIZE);
+            if (n == 0) return new long[] { 0, 0, 0, 0, 0 };
+            long[] sorted = Arrays.copyOf(mNanos, n);
+            Arrays.sort(sorted);
+            return new long[] { mCount,
+                sorted[(n - 1) / 2] / 1000, sorted[(n * 99 - 1) / 100] / 1000,
+                mRejected, mErrors };
+        }
+    }
+
+    /**
+     * Counts square queries in batches: all those waiting when a batch
+     * starts go in, so a batch is as large as the load asks for, with no
+     * delay when there's none.
+     */
+    static class SquaresBatcher extends Thread {
+        private final LinkedBlockingQueue<Query> mQueue =
+            new LinkedBlockingQueue<Query>();
+        final AtomicLong mBatches = new AtomicLong();
+        final AtomicLong mQueries = new AtomicLong();
+
+        SquaresBatcher() {
+            super("squares-batcher");
+            setDaemon(true);
+        }
+
+        int count(int n) throws InterruptedException {
+            Query query = new Query(n);
+            mQueue.add(query);
+            query.mDone.await();
+            if (query.mFailure != null) throw query.mFailure;
+            return query.mCount;
+        }
+
+        @Override
+        public void run() {
+            List<Query> batch = new ArrayList<Query>();
+            try {
+                while (true) {
+                    batch.add(mQueue.take());
+                    mQueue.drainTo(batch, MAX_BATCH - 1);
+                    int[] ns = new int[batch.size()];
+                    for (int i = 0; i < ns.length; i++) {
+                        ns[i] = batch.get(i).mN;
+                    }
+                    try {
+                        int[] counts = DoubleSquare.countDecompositions(ns);
+                        for (int i = 0; i < ns.length; i++) {
+                            batch.get(i).mCount = counts[i];
+                        }
+                    } catch (RuntimeException e) {
+                        for (Query query : batch) {
+                            query.mFailure = e;
+                        }
+                    }
+                    for (Query query : batch) {
+                        query.mDone.countDown();
+                    }
+                    mBatches.incrementAndGet();
+                    mQueries.addAndGet(ns.length);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                // Closed
+            }
+        }
+    }
+
+    static class Query {
+        final int mN;
+        final CountDownLatch mDone = new CountDownLatch(1);
+        int mCount;
+        RuntimeException mFailure;
+
+        Query(int n) {
+            mN = n;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        checkCondArg(args.length <= 1, "args[0] must be the port, if any");
+        int port = args.length == 1 ? Integer.parseInt(args[0]) : 8080;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        QueryServer server = new QueryServer(port, 4 * cpus, 64 * cpus);
+        server.start();
+        System.out.println("Listening on localhost:" + server.port());
+    }
+}
@@ -0,0 +1,180 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class QueryServerTest {
+
+    @Test
+    public void answersQueries() throws IOException {
+        QueryServer server = new QueryServer(0, 2, 8);
+        try {
+            server.start();
+            assertEquals("78498", get(server, "/pi?x=1000000").mBody);
+            assertEquals("5", get(server, "/count?lo=100&hi=120").mBody);
+            assertEquals("1", get(server, "/isprime?x=1000003").mBody);
+            assertEquals("0", get(server, "/isprime?x=1000001").mBody);
+            assertEquals("2", get(server, "/squares?n=25").mBody);
+            assertEquals(String.valueOf(PrimeList.sieve(5000000000L,
+                5000001000L, null)),
+                get(server, "/count?lo=5000000000&hi=5000001000").mBody);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void badQueries() throws IOException {
+        QueryServer server = new QueryServer(0, 2, 8);
+        try {
+            server.start();
+            assertEquals(400, get(server, "/pi").mStatus);
+            assertEquals(400, get(server, "/pi?x=abc").mStatus);
+            assertEquals(400, get(server, "/pi?x=-1").mStatus);
+            assertEquals(400, get(server, "/squares?n=3000000000").mStatus);
+            assertEquals(404, get(server, "/pi/more?x=1").mStatus);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void concurrentSquaresAreBatched() throws Exception {
+        final QueryServer server = new QueryServer(0, 8, 64);
+        try {
+            server.start();
+            final int nthreads = 8;
+            final int perThread = 50;
+            final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+            Thread[] threads = new Thread[nthreads];
+            for (int t = 0; t < nthreads; t++) {
+                final int first = 1000000 * (t + 1);
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int n = first; n < first + perThread; n++) {
+                                String expected = String.valueOf(
+                                    DoubleSquare.countDecompositions(n));
+                                assertEquals(expected,
+                                    get(server, "/squares?n=" + n).mBody);
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (failure.get() != null) throw new AssertionError(failure.get());
+
+            String stats = get(server, "/stats").mBody;
+            assertTrue(stats, stats.contains("\"squareQueries\":"
+                + nthreads * perThread));
+            assertTrue(stats, stats.contains("\"squares\":{\"requests\":"
+                + nthreads * perThread + ",\"p50Micros\":"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void rejectsPastMaxInFlight() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // Counts hold the only slot until released
+        final QueryServer server = new QueryServer(0, 1, 1) {
+            @Override
+            protected String answer(String endpoint, Map<String, String> params)
+                    throws InterruptedException {
+                if (endpoint.equals("/count")) {
+                    started.countDown();
+                    release.await();
+                }
+                return super.answer(endpoint, params);
+            }
+        };
+        try {
+            server.start();
+            final AtomicReference<Object> held = new AtomicReference<Object>();
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        held.set(get(server, "/count?lo=100&hi=120"));
+                    } catch (IOException e) {
+                        held.set(e);
+                    }
+                }
+            };
+            thread.start();
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            Response rejected = get(server, "/pi?x=10");
+            assertEquals(503, rejected.mStatus);
+            assertEquals("1", rejected.mRetryAfter);
+
+            release.countDown();
+            thread.join();
+            assertTrue(String.valueOf(held.get()),
+                held.get() instanceof Response);
+            assertEquals(200, ((Response) held.get()).mStatus);
+            assertEquals("5", ((Response) held.get()).mBody);
+            assertEquals("4", get(server, "/pi?x=10").mBody);
+
+            String stats = get(server, "/stats").mBody;
+            assertTrue(stats,
+                stats.contains("\"maxInFlight\":1,\"rejected\":1,"));
+            assertTrue(stats, stats.contains("\"pi\":{\"requests\":2,"));
+            assertTrue(stats, stats.contains("\"rejected\":1,\"errors\":0}"));
+        } finally {
+            release.countDown();
+            server.close();
+        }
+    }
+
+    private static Response get(QueryServer server, String path)
+            throws IOException {
+        URL url = new URL("http://localhost:" + server.port() + path);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            Response response = new Response();
+            response.mStatus = conn.getResponseCode();
+            response.mRetryAfter = conn.getHeaderField("Retry-After");
+            InputStream in = response.mStatus < 400
+                ? conn.getInputStream() : conn.getErrorStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                bytes.write(buf, 0, n);
+            }
+            in.close();
+            response.mBody = bytes.toString("UTF-8").trim();
+            return response;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    static class Response {
+        int mStatus;
+        String mRetryAfter;
+        String mBody;
+    }
+}
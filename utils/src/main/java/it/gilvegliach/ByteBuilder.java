@@ -0,0 +1,95 @@
+package it.gilvegliach;
+
+import static it.gilvegliach.Utils.checkCondArg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Growable byte buffer that formats numbers in place, as ASCII digits or
+ * varints, without going through Strings. Meant to be reused:
+ * {@link #reset()} keeps the backing array, so a warmed up buffer does not
+ * allocate anymore.
+ */
+public class ByteBuilder {
+    private byte[] mBuf;
+    private int mSize;
+
+    public ByteBuilder(int capacity) {
+        checkCondArg(capacity > 0, "capacity must be > 0");
+        mBuf = new byte[capacity];
+    }
+
+    public ByteBuilder append(byte b) {
+        ensureCapacity(1);
+        mBuf[mSize++] = b;
+        return this;
+    }
+
+    /** Appends the decimal digits of <code>n</code>, that must be >= 0 */
+    public ByteBuilder append(long n) {
+        checkCondArg(n >= 0, "n must be >= 0");
+
+        // Count digits first, then fill them from the right
+        int len = 1;
+        for (long m = n; m >= 10; m /= 10) len++;
+        ensureCapacity(len);
+
+        int pos = mSize + len;
+        while (n >= 10) {
+            long q = n / 10;
+            mBuf[--pos] = (byte) ('0' + (n - q * 10));
+            n = q;
+        }
+        mBuf[--pos] = (byte) ('0' + n);
+        mSize += len;
+        return this;
+    }
+
+    /**
+     * Appends <code>n</code>, that must be >= 0, as a varint: 7 bits per
+     * byte, low first, the high bit set on all but the last. For the binary
+     * formats of {@link PrimeReader}.
+     */
+    public ByteBuilder appendVarint(long n) {
+        checkCondArg(n >= 0, "n must be >= 0");
+        ensureCapacity(10);
+        while (n >= 0x80) {
+            mBuf[mSize++] = (byte) (n | 0x80);
+            n >>>= 7;
+        }
+        mBuf[mSize++] = (byte) n;
+        return this;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(mBuf, 0, mSize);
+    }
+
+    public void reset() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /** Bytes held without growing */
+    public int capacity() {
+        return mBuf.length;
+    }
+
+    /** The backing array, valid in <code>[0, size())</code> */
+    public byte[] array() {
+        return mBuf;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mSize + extra <= mBuf.length) return;
+        int cap = mBuf.length << 1;
+        while (cap < mSize + extra) cap <<= 1;
+        byte[] buf = new byte[cap];
+        System.arraycopy(mBuf, 0, buf, 0, mSize);
+        mBuf = buf;
+    }
+}
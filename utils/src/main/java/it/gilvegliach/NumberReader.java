@@ -0,0 +1,111 @@
+package it.gilvegliach;
+
+import static it.gilvegliach.Utils.checkNonNullArg;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file of numbers, one per line, straight from a direct buffer
+ * filled by the file channel: digits are parsed as they're read, without
+ * going through Strings. Lines are as strict as {@link Long#parseLong}: an
+ * optional sign and digits only, ended by '\n', "\r\n" or the end of file.
+ */
+public class NumberReader implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int EOF = -1;
+
+    private final FileInputStream mIn;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private int mLine;
+
+    public NumberReader(File file) throws FileNotFoundException {
+        checkNonNullArg(file, "file must not be null");
+        mIn = new FileInputStream(file);
+        mChannel = mIn.getChannel();
+        mBuf.flip();    // empty until the first read
+    }
+
+    /** Whether there's another line, that is any byte left */
+    public boolean hasNext() throws IOException {
+        return fill();
+    }
+
+    /**
+     * Parses the next line. Throws NumberFormatException if it's not a
+     * long, EOFException if there are no lines left.
+     */
+    public long nextLong() throws IOException {
+        if (!fill()) throw new EOFException();
+        mLine++;
+
+        int b = read();
+        boolean negative = b == '-';
+        if (negative || b == '+') b = read();
+
+        // Accumulates negatively, as parseLong, to reach Long.MIN_VALUE
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multmin = limit / 10;
+        long result = 0;
+        int digits = 0;
+        for (; '0' <= b && b <= '9'; b = read(), digits++) {
+            int d = b - '0';
+            if (result < multmin || result * 10 < limit + d) {
+                throw error("out of range");
+            }
+            result = result * 10 - d;
+        }
+        if (digits == 0) throw error("no digits");
+
+        if (b == '\r') b = read();
+        if (b != '\n' && b != EOF) throw error("trailing characters");
+        return negative ? result : -result;
+    }
+
+    /** Same as {@link #nextLong()}, for ints */
+    public int nextInt() throws IOException {
+        long n = nextLong();
+        if (n < Integer.MIN_VALUE || n > Integer.MAX_VALUE) {
+            throw error("out of range");
+        }
+        return (int) n;
+    }
+
+    /** Number of the last line parsed, from 1 */
+    public int lineNumber() {
+        return mLine;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private NumberFormatException error(String what) {
+        return new NumberFormatException("Line " + mLine + ": " + what);
+    }
+
+    /** Next byte, or EOF */
+    private int read() throws IOException {
+        return fill() ? mBuf.get() : EOF;
+    }
+
+    /** Whether there are bytes left, reading more if need be */
+    private boolean fill() throws IOException {
+        if (mBuf.hasRemaining()) return true;
+        mBuf.clear();
+        int n;
+        do {
+            n = mChannel.read(mBuf);
+        } while (n == 0);
+        mBuf.flip();
+        return n > 0;
+    }
+}
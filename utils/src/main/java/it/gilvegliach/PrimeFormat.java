@@ -0,0 +1,22 @@
+package it.gilvegliach;
+
+/**
+ * Encodings of the primes of a block: written by PrimeList, a block at a
+ * time, and read back by {@link PrimeReader} in the binary ones.
+ */
+public final class PrimeFormat {
+    /** Decimal digits, each prime after a separator */
+    public static final int TEXT = 0;
+    /** Gap to each next prime, as varints. See {@link PrimeReader} */
+    public static final int GAPS = 1;
+    /** Sieve bits of the wheel, set on primes. See {@link PrimeReader} */
+    public static final int BITMAP = 2;
+
+    private PrimeFormat() {
+    }
+
+    /** Whether <code>encoding</code> is one of the binary ones */
+    public static boolean isBinary(int encoding) {
+        return encoding == GAPS || encoding == BITMAP;
+    }
+}
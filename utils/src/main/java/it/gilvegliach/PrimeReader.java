@@ -0,0 +1,377 @@
+package it.gilvegliach;
+
+import static it.gilvegliach.Utils.checkNonNullArg;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the primes of a file in one of the binary formats written by
+ * PrimeList, in order, or from any number on with {@link #seek(long)}.
+ * <p>
+ * A file is a header, frames and an end mark. Varints are as written by
+ * {@link ByteBuilder#appendVarint(long)}, fixed size numbers big endian.
+ * <pre>
+ *     header: 'P' 'R' 'I' 'M', version, encoding, flags, lo, hi
+ *     frame:  1, lo, hi - lo, count, raw length, [stored length,] payload
+ *     end:    0, count
+ * </pre>
+ * Frames hold the primes in their own <code>[lo..hi]</code>, a block of
+ * the sieve each, and are read on their own. With {@link PrimeFormat#GAPS}
+ * the payload is the first prime minus lo, then the gap to each next one,
+ * halved past 2. With {@link PrimeFormat#BITMAP} it's the sieve bits,
+ * inverted: bit j of byte i is set if <code>base + 30 i + WHEEL[j]</code>
+ * is a prime, where base is lo rounded down to a multiple of 30. Primes 2,
+ * 3 and 5 are left out, as anything else in [lo..hi] is set only if prime.
+ * <p>
+ * With {@link #COMPRESSED}, the payloads are deflated, to their stored
+ * length, and the end mark is followed by an index of the frames, for
+ * seeking: lo, hi and offset of each, as longs, then the offset of the
+ * index, as a long, the number of frames, as an int, and the magic again.
+ */
+public class PrimeReader implements Closeable {
+    public static final int COMPRESSED = 1;
+
+    static final byte[] MAGIC = { 'P', 'R', 'I', 'M' };
+    static final int VERSION = 1;
+    static final int FRAME = 1;
+    static final int END = 0;
+    static final int INDEX_ENTRY_BYTES = 24;
+    static final int TRAILER_BYTES = 16;
+
+    private static final int[] WHEEL = { 1, 7, 11, 13, 17, 19, 23, 29 };
+    private static final int[] SMALL_PRIMES = { 2, 3, 5 };
+    private static final int MAX_HEADER_BYTES = 64;
+
+    private final FileInputStream mIn;
+    private final FileChannel mChannel;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(MAX_HEADER_BYTES);
+    private final int mEncoding;
+    private final boolean mCompressed;
+    private final long mLow;
+    private final long mHigh;
+    private final long mFirstFrame;
+    private Inflater mInflater;
+    private long[] mIndex;              // lo, hi, offset of each frame
+
+    // Next frame to read, and its header once read
+    private long mPos;
+    private boolean mEnded;
+    private long mFrameLo;
+    private long mFrameHi;
+    private int mRawLength;
+    private int mStoredLength;
+
+    // Frame being decoded: the payload in [0, mSize) from mCursor
+    private byte[] mPayload = new byte[0];
+    private byte[] mStored = new byte[0];
+    private int mSize;
+    private int mCursor;
+    private long mPrev;                 // last prime of the frame, or -1
+    private int mSmall = SMALL_PRIMES.length;  // of 2, 3, 5, in bitmaps
+    private long mBase;                 // number of bit 0 of mBits' byte
+    private int mBits;                  // bits of the byte left to decode
+    private long mNext = -1;            // prime decoded ahead, or -1
+
+    public PrimeReader(File file) throws IOException {
+        checkNonNullArg(file, "file must not be null");
+        mIn = new FileInputStream(file);
+        mChannel = mIn.getChannel();
+        try {
+            ByteBuffer header = readHeader(0);
+            for (byte b : MAGIC) {
+                if (header.get() != b) throw new IOException("Not a prime file");
+            }
+            int version = header.get();
+            if (version != VERSION) {
+                throw new IOException("Unknown version " + version);
+            }
+            mEncoding = header.get();
+            if (!PrimeFormat.isBinary(mEncoding)) {
+                throw new IOException("Unknown encoding " + mEncoding);
+            }
+            mCompressed = (header.get() & COMPRESSED) != 0;
+            mLow = varint(header);
+            mHigh = varint(header);
+            mFirstFrame = header.position();
+        } catch (BufferUnderflowException e) {
+            mIn.close();
+            throw new EOFException("Truncated header");
+        } catch (IOException e) {
+            mIn.close();
+            throw e;
+        }
+        mPos = mFirstFrame;
+    }
+
+    public PrimeReader(String pathname) throws IOException {
+        this(new File(pathname));
+    }
+
+    /** {@link PrimeFormat#GAPS} or {@link PrimeFormat#BITMAP} */
+    public int encoding() {
+        return mEncoding;
+    }
+
+    public boolean isCompressed() {
+        return mCompressed;
+    }
+
+    /** Low end of the range sieved, the primes are all in [low..high] */
+    public long low() {
+        return mLow;
+    }
+
+    public long high() {
+        return mHigh;
+    }
+
+    public boolean hasNext() throws IOException {
+        if (mNext < 0) mNext = decode();
+        return mNext >= 0;
+    }
+
+    /** The next prime, throwing EOFException if there's none */
+    public long nextPrime() throws IOException {
+        if (!hasNext()) throw new EOFException();
+        long p = mNext;
+        mNext = -1;
+        return p;
+    }
+
+    /**
+     * Moves to the first prime >= <code>x</code>. Compressed files jump
+     * to its frame by the index, the others skip from frame to frame.
+     */
+    public void seek(long x) throws IOException {
+        mSize = mCursor = 0;
+        mBits = 0;
+        mSmall = SMALL_PRIMES.length;
+        mNext = -1;
+        mEnded = false;
+        mPos = mFirstFrame;
+        if (mCompressed) {
+            long[] index = index();
+            // First frame ending at x or later
+            int lo = 0;
+            int hi = index.length / 3;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (index[3 * mid + 1] < x) lo = mid + 1; else hi = mid;
+            }
+            if (lo == index.length / 3) {
+                mEnded = true;
+                return;
+            }
+            mPos = index[3 * lo + 2];
+        } else {
+            while (true) {
+                long pos = mPos;
+                if (!readFrameHeader()) return;
+                if (mFrameHi >= x) {
+                    mPos = pos;
+                    break;
+                }
+                mPos += mRawLength;
+            }
+        }
+        while (hasNext() && mNext < x) mNext = -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mInflater != null) mInflater.end();
+        mIn.close();
+    }
+
+    /** The next prime, or -1 if there are none left */
+    private long decode() throws IOException {
+        while (true) {
+            long p = mEncoding == PrimeFormat.GAPS ? decodeGap() : decodeBit();
+            if (p >= 0) return p;
+            if (!readFrame()) return -1;
+        }
+    }
+
+    private long decodeGap() throws IOException {
+        if (mCursor == mSize) return -1;
+        long gap = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (mCursor == mSize || shift > 63) {
+                throw new IOException("Bad varint in frame at " + mFrameLo);
+            }
+            b = mPayload[mCursor++];
+            gap |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        if (mPrev < 0) {
+            mPrev = mFrameLo + gap;
+        } else {
+            mPrev = mPrev == 2 ? 3 : mPrev + (gap << 1);
+        }
+        return mPrev;
+    }
+
+    private long decodeBit() {
+        while (mSmall < SMALL_PRIMES.length) {
+            long p = SMALL_PRIMES[mSmall++];
+            if (mFrameLo <= p && p <= mFrameHi) return p;
+        }
+        while (mBits == 0) {
+            if (mCursor == mSize) return -1;
+            mBits = mPayload[mCursor++] & 0xFF;
+            mBase += 30;
+        }
+        int j = Integer.numberOfTrailingZeros(mBits);
+        mBits &= mBits - 1;
+        return mBase + WHEEL[j];
+    }
+
+    /** Reads the next frame, returning false at the end mark */
+    private boolean readFrame() throws IOException {
+        if (!readFrameHeader()) return false;
+        if (mPayload.length < mRawLength) mPayload = new byte[mRawLength];
+        if (mCompressed) {
+            if (mStored.length < mStoredLength) mStored = new byte[mStoredLength];
+            readFully(mStored, mStoredLength, mPos);
+            mPos += mStoredLength;
+            inflate();
+        } else {
+            readFully(mPayload, mRawLength, mPos);
+            mPos += mRawLength;
+        }
+        mSize = mRawLength;
+        mCursor = 0;
+        mPrev = -1;
+        mSmall = 0;
+        mBase = mFrameLo - mFrameLo % 30 - 30;
+        mBits = 0;
+        return true;
+    }
+
+    /**
+     * Reads the header of the frame at mPos, leaving mPos on its payload,
+     * or returns false at the end mark.
+     */
+    private boolean readFrameHeader() throws IOException {
+        if (mEnded) return false;
+        ByteBuffer header = readHeader(mPos);
+        try {
+            int tag = header.get();
+            if (tag == END) {
+                mEnded = true;
+                return false;
+            }
+            if (tag != FRAME) throw new IOException("Bad frame at " + mPos);
+            mFrameLo = varint(header);
+            mFrameHi = mFrameLo + varint(header);
+            varint(header);     // count
+            mRawLength = length(varint(header));
+            mStoredLength = mCompressed ? length(varint(header)) : mRawLength;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated frame at " + mPos);
+        }
+        mPos += header.position();
+        return true;
+    }
+
+    private void inflate() throws IOException {
+        if (mInflater == null) mInflater = new Inflater();
+        mInflater.reset();
+        mInflater.setInput(mStored, 0, mStoredLength);
+        try {
+            int n = 0;
+            while (n < mRawLength) {
+                int k = mInflater.inflate(mPayload, n, mRawLength - n);
+                if (k == 0 && (mInflater.finished() || mInflater.needsInput())) {
+                    break;
+                }
+                n += k;
+            }
+            if (n != mRawLength) {
+                throw new IOException("Short frame at " + mFrameLo);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad frame at " + mFrameLo, e);
+        }
+    }
+
+    /** The index of the frames, read at the first call */
+    private long[] index() throws IOException {
+        if (mIndex != null) return mIndex;
+        long size = mChannel.size();
+        if (size < mFirstFrame + TRAILER_BYTES) {
+            throw new EOFException("No index");
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+        readFully(trailer, size - TRAILER_BYTES);
+        long offset = trailer.getLong();
+        int n = trailer.getInt();
+        for (byte b : MAGIC) {
+            if (trailer.get() != b) throw new IOException("No index");
+        }
+        if (n < 0 || offset < mFirstFrame
+                || offset + (long) n * INDEX_ENTRY_BYTES != size - TRAILER_BYTES) {
+            throw new IOException("Bad index");
+        }
+        ByteBuffer entries = ByteBuffer.allocate(n * INDEX_ENTRY_BYTES);
+        readFully(entries, offset);
+        long[] index = new long[3 * n];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = entries.getLong();
+        }
+        mIndex = index;
+        return index;
+    }
+
+    /** Up to MAX_HEADER_BYTES from <code>pos</code>, fewer at the end */
+    private ByteBuffer readHeader(long pos) throws IOException {
+        mHeader.clear();
+        while (mHeader.hasRemaining()) {
+            int n = mChannel.read(mHeader, pos + mHeader.position());
+            if (n < 0) break;
+        }
+        mHeader.flip();
+        if (!mHeader.hasRemaining()) throw new EOFException("Truncated file");
+        return mHeader;
+    }
+
+    private void readFully(byte[] buf, int len, long pos) throws IOException {
+        readFully(ByteBuffer.wrap(buf, 0, len), pos);
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        int start = buf.position();
+        while (buf.hasRemaining()) {
+            int n = mChannel.read(buf, pos + buf.position() - start);
+            if (n < 0) throw new EOFException("Truncated file");
+        }
+        buf.flip();
+        buf.position(start);
+    }
+
+    private static long varint(ByteBuffer buf) throws IOException {
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            n |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return n;
+        }
+        throw new IOException("Bad varint");
+    }
+
+    private static int length(long n) throws IOException {
+        if (n > Integer.MAX_VALUE) throw new IOException("Frame too long: " + n);
+        return (int) n;
+    }
+}
@@ -0,0 +1,113 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NumberReaderTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    
+    @Test
+    public void readsLines() throws IOException {
+        NumberReader in = reader("10\r\n-7\n+3\n0\n" + Long.MAX_VALUE + "\n" + 
+            Long.MIN_VALUE);
+        try {
+            assertEquals(10, in.nextLong());
+            assertEquals(-7, in.nextLong());
+            assertEquals(3, in.nextInt());
+            assertEquals(0, in.nextInt());
+            assertEquals(Long.MAX_VALUE, in.nextLong());
+            assertTrue(in.hasNext());
+            assertEquals(Long.MIN_VALUE, in.nextLong());
+            assertEquals(6, in.lineNumber());
+            assertFalse(in.hasNext());
+        } finally {
+            in.close();
+        }
+    }
+    
+    @Test
+    public void readsAcrossBuffers() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append(i * 7919L).append('\n');
+        }
+        NumberReader in = reader(sb.toString());
+        try {
+            for (int i = 0; i < 100000; i++) {
+                assertEquals(i * 7919L, in.nextLong());
+            }
+            assertFalse(in.hasNext());
+        } finally {
+            in.close();
+        }
+    }
+    
+    @Test(expected = NumberFormatException.class)
+    public void emptyLine() throws IOException {
+        parse("1\n\n2\n", 2);
+    }
+    
+    @Test(expected = NumberFormatException.class)
+    public void trailingSpace() throws IOException {
+        parse("1 \n", 1);
+    }
+    
+    @Test(expected = NumberFormatException.class)
+    public void signOnly() throws IOException {
+        parse("-\n", 1);
+    }
+    
+    @Test(expected = NumberFormatException.class)
+    public void longOverflow() throws IOException {
+        parse("9223372036854775808\n", 1);
+    }
+    
+    @Test(expected = NumberFormatException.class)
+    public void intOverflow() throws IOException {
+        NumberReader in = reader("2147483648\n");
+        try {
+            in.nextInt();
+        } finally {
+            in.close();
+        }
+    }
+    
+    @Test(expected = EOFException.class)
+    public void pastTheEnd() throws IOException {
+        parse("1\n", 2);
+    }
+    
+    /** Parses n longs from text */
+    private void parse(String text, int n) throws IOException {
+        NumberReader in = reader(text);
+        try {
+            for (int i = 0; i < n; i++) {
+                in.nextLong();
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    private NumberReader reader(String text) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return new NumberReader(file);
+    }
+}
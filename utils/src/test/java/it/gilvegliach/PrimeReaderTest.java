@@ -0,0 +1,92 @@
+package it.gilvegliach;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PrimeReaderTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readsGaps() throws IOException {
+        // Primes in [10..20]: 11, then gaps of 2, 4, 2 halved
+        PrimeReader in = reader('P', 'R', 'I', 'M', 1, PrimeFormat.GAPS, 0,
+            10, 20,
+            1, 10, 10, 4, 4, 1, 1, 2, 1,
+            0, 4);
+        try {
+            assertEquals(PrimeFormat.GAPS, in.encoding());
+            assertEquals(10, in.low());
+            assertEquals(20, in.high());
+            assertEquals(11, in.nextPrime());
+            assertEquals(13, in.nextPrime());
+            assertEquals(17, in.nextPrime());
+            assertEquals(19, in.nextPrime());
+            assertFalse(in.hasNext());
+            in.seek(14);
+            assertEquals(17, in.nextPrime());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void readsBitmaps() throws IOException {
+        // Primes in [0..40]: 2, 3 and 5 implied, 7 to 29 in the first byte,
+        // then 31 and 37
+        PrimeReader in = reader('P', 'R', 'I', 'M', 1, PrimeFormat.BITMAP, 0,
+            0, 40,
+            1, 0, 40, 12, 2, 0xFE, 0x03,
+            0, 12);
+        try {
+            long[] primes = { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37 };
+            for (long p : primes) {
+                assertEquals(p, in.nextPrime());
+            }
+            assertFalse(in.hasNext());
+            in.seek(30);
+            assertEquals(31, in.nextPrime());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notAPrimeFile() throws IOException {
+        reader('1', '2', '3', '\n');
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncated() throws IOException {
+        PrimeReader in = reader('P', 'R', 'I', 'M', 1, PrimeFormat.GAPS, 0,
+            10, 20,
+            1, 10, 10, 4, 4, 1);
+        try {
+            while (true) in.nextPrime();
+        } finally {
+            in.close();
+        }
+    }
+
+    private PrimeReader reader(int... bytes) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int b : bytes) {
+                out.write(b);
+            }
+        } finally {
+            out.close();
+        }
+        return new PrimeReader(file);
+    }
+}